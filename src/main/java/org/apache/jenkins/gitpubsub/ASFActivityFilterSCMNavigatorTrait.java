@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import jenkins.scm.api.SCMNavigator;
+import jenkins.scm.api.trait.SCMNavigatorContext;
+import jenkins.scm.api.trait.SCMNavigatorTrait;
+import jenkins.scm.api.trait.SCMNavigatorTraitDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A {@link SCMNavigatorTrait} that skips the repositories of retired projects, which the ASF moves to the
+ * {@value #ATTIC} project, and the repositories that have not been pushed to for a number of days. The last activity
+ * is taken from the repository catalogue or from the last push event we observed, whichever is more recent.
+ */
+public class ASFActivityFilterSCMNavigatorTrait extends SCMNavigatorTrait {
+    /**
+     * The project that retired repositories belong to.
+     */
+    static final String ATTIC = "attic";
+    /**
+     * The number of days without activity after which a repository is skipped, {@code 0} to keep inactive
+     * repositories.
+     */
+    private final int inactiveDays;
+    /**
+     * Whether to skip the repositories of retired projects.
+     */
+    private final boolean skipAttic;
+
+    @DataBoundConstructor
+    public ASFActivityFilterSCMNavigatorTrait(int inactiveDays, boolean skipAttic) {
+        this.inactiveDays = Math.max(0, inactiveDays);
+        this.skipAttic = skipAttic;
+    }
+
+    public int getInactiveDays() {
+        return inactiveDays;
+    }
+
+    public boolean isSkipAttic() {
+        return skipAttic;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void decorateContext(SCMNavigatorContext<?, ?> context) {
+        ((ASFGitSCMNavigatorContext) context).withActivityFilter(this);
+    }
+
+    /**
+     * Checks whether the supplied project is retired and should be skipped.
+     *
+     * @param project the project name.
+     * @return {@code true} if the repositories of the project should be skipped.
+     */
+    boolean isRetired(@NonNull String project) {
+        return skipAttic && ATTIC.equals(project);
+    }
+
+    /**
+     * Checks whether a repository has been inactive for too long.
+     *
+     * @param lastActivity the time of the last activity in milliseconds since the epoch, or {@code -1} if unknown.
+     * @param now          the current time in milliseconds since the epoch.
+     * @return {@code true} if the repository should be skipped.
+     */
+    boolean isInactive(long lastActivity, long now) {
+        return inactiveDays > 0 && lastActivity >= 0 && now - lastActivity > TimeUnit.DAYS.toMillis(inactiveDays);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends SCMNavigatorTraitDescriptor {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Class<? extends SCMNavigatorContext> getContextClass() {
+            return ASFGitSCMNavigatorContext.class;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Class<? extends SCMNavigator> getNavigatorClass() {
+            return ASFGitSCMNavigator.class;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return Messages.ASFActivityFilterSCMNavigatorTrait_displayName();
+        }
+    }
+}
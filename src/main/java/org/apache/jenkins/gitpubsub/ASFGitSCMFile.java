@@ -13,58 +13,70 @@
  */
 package org.apache.jenkins.gitpubsub;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import jenkins.scm.api.SCMFile;
-import org.eclipse.jgit.lib.Constants;
-import org.jsoup.HttpStatusException;
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import static org.apache.jenkins.gitpubsub.ASFGitSCMFileSystem.fetchDocument;
-import static org.apache.jenkins.gitpubsub.ASFGitSCMNavigator.RFC_2822;
 
 /**
  * A {@link SCMFile} that is backed by a GitWeb server hosted on {@code apache.org}.
  */
 public class ASFGitSCMFile extends SCMFile {
 
+    /**
+     * The file system that this file belongs to.
+     */
+    private final ASFGitSCMFileSystem fs;
     /**
      * The Git URL from which the project and gitweb server can be derived.
      */
     private final String remote;
     /**
-     * The ref or hash that the file is being accessed for.
+     * The hash that the file is being accessed for.
      */
-    private final String refOrHash;
+    private final String hash;
+    /**
+     * The entry of this file in the listing of the parent directory if known.
+     */
+    @CheckForNull
+    private ASFGitSCMFileSystem.TreeEntry entry;
 
     /**
      * Root constructor.
+     * @param fs The file system that this file belongs to.
      * @param remote The Git URL from which the project and gitweb server can be derived.
-     * @param refOrHash The ref or hash that the file is being accessed for.
+     * @param hash The hash that the file is being accessed for.
      */
-    ASFGitSCMFile(String remote, String refOrHash) {
+    ASFGitSCMFile(@NonNull ASFGitSCMFileSystem fs, String remote, String hash) {
+        this.fs = fs;
         this.remote = remote;
-        this.refOrHash = refOrHash;
+        this.hash = hash;
     }
 
     /**
      * Child constructor.
      * @param parent the parent file.
      * @param name the name of the child.
+     * @param entry the entry of the child in the listing of the parent or {@code null} if unknown.
      */
-    ASFGitSCMFile(@NonNull ASFGitSCMFile parent, String name) {
+    ASFGitSCMFile(@NonNull ASFGitSCMFile parent, String name, @CheckForNull ASFGitSCMFileSystem.TreeEntry entry) {
         super(parent, name);
+        this.fs = parent.fs;
         this.remote = parent.remote;
-        this.refOrHash = parent.refOrHash;
+        this.hash = parent.hash;
+        this.entry = entry;
     }
 
     /**
@@ -73,7 +85,7 @@ public class ASFGitSCMFile extends SCMFile {
     @NonNull
     @Override
     protected SCMFile newChild(@NonNull String name, boolean assumeIsDirectory) {
-        return new ASFGitSCMFile(this, name);
+        return new ASFGitSCMFile(this, name, null);
     }
 
     /**
@@ -82,25 +94,10 @@ public class ASFGitSCMFile extends SCMFile {
     @NonNull
     @Override
     public Iterable<SCMFile> children() throws IOException, InterruptedException {
-        String treeUrl = ASFGitSCMFileSystem.buildTemplateWithRemote("{+server}{?p}{;a,hb,f}", remote)
-                .set("a", "tree")
-                .set("hb", refOrHash)
-                .set("f", isRoot() ? null : getPath())
-                .expand();
-        Document doc = fetchDocument(treeUrl);
-        Elements elements = doc.select("table.tree tr td.list a");
         List<SCMFile> result = new ArrayList<>();
-        for (Element element : elements) {
-            String name = element.text();
-            if (".".equals(name) || "..".equals(name)) {
-                continue;
-            }
-            Element mode = element.parent().previousElementSibling().previousElementSibling();
-            if (mode.text().startsWith("d")) {
-                result.add(newChild(element.text(), true));
-            } else {
-                result.add(newChild(element.text(), false));
-            }
+        Map<String, ASFGitSCMFileSystem.TreeEntry> listing = fs.listTree(isRoot() ? "" : getPath());
+        for (Map.Entry<String, ASFGitSCMFileSystem.TreeEntry> child : listing.entrySet()) {
+            result.add(new ASFGitSCMFile(this, child.getKey(), child.getValue()));
         }
         return result;
     }
@@ -111,69 +108,31 @@ public class ASFGitSCMFile extends SCMFile {
     @Override
     public long lastModified() throws IOException, InterruptedException {
         if (isRoot()) {
-            if (refOrHash.startsWith(Constants.R_TAGS)) {
-                String tagUrl = ASFGitSCMFileSystem.buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
-                        .set("a", "tag")
-                        .set("h", refOrHash)
+            return fs.lastModified();
+        }
+        final String path = getPath();
+        // GitWeb only renders the date in the history listing, so the time comes from the commit page, but both the
+        // path and the commit timestamps are memoized as the file system is pinned to a commit
+        return ASFGitSCMFileSystem.timestamp(remote + "#" + hash + ":" + path, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                String historyUrl = ASFGitSCMFileSystem.buildTemplateWithRemote("{+server}{?p}{;a,hb,f}", remote)
+                        .set("a", "history")
+                        .set("hb", hash)
+                        .set("f", path)
                         .expand();
-                Document doc;
-                try {
-                    doc = fetchDocument(tagUrl);
-                } catch (HttpStatusException e) {
-                    if (e.getStatusCode() == 404) {
-                        // must be a lightweight tag
-                        doc = null;
-                    } else {
-                        return 0L;
-                    }
+                Document doc = fetchDocument(historyUrl);
+                Elements elements = doc.select("table.history tr td a.subject");
+                if (elements.isEmpty()) {
+                    return 0L;
                 }
-                if (doc != null) {
-                    Elements elements = doc.select("table.object_header tr td span.datetime");
-                    try {
-                        return new SimpleDateFormat(RFC_2822).parse(elements.get(0).text())
-                                .getTime();
-                    } catch (ParseException | IndexOutOfBoundsException e) {
-                        return 0L;
-                    }
+                Matcher href = ASFGitSCMFileSystem.URL_EXTRACT_H.matcher(elements.get(0).attr("href"));
+                if (!href.matches()) {
+                    return 0L;
                 }
+                return ASFGitSCMFileSystem.commitTimestamp(remote, href.group(1).toLowerCase(Locale.ENGLISH));
             }
-            String commitUrl = ASFGitSCMFileSystem.buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
-                    .set("a", "commit")
-                    .set("h", refOrHash)
-                    .expand();
-            Document doc = fetchDocument(commitUrl);
-            Elements elements = doc.select("table.object_header tr td span.datetime");
-            try {
-                return new SimpleDateFormat(RFC_2822).parse(elements.get(1).text()).getTime();
-            } catch (ParseException | IndexOutOfBoundsException e) {
-                return 0L;
-            }
-        }
-        String historyUrl = ASFGitSCMFileSystem.buildTemplateWithRemote("{+server}{?p}{;a,hb,f}", remote)
-                .set("a", "history")
-                .set("hb", refOrHash)
-                .set("f", getPath())
-                .expand();
-        Document doc = fetchDocument(historyUrl);
-        Elements elements = doc.select("table.history tr td a.subject");
-        if (elements.isEmpty()) {
-            return 0L;
-        }
-        Matcher href = ASFGitSCMFileSystem.URL_EXTRACT_H.matcher(elements.get(0).attr("href"));
-        if (!href.matches()) {
-            return 0L;
-        }
-        String commitUrl = ASFGitSCMFileSystem.buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
-                .set("a", "commit")
-                .set("h", href.group(1))
-                .expand();
-        doc = fetchDocument(commitUrl);
-        elements = doc.select("table.object_header tr td span.datetime");
-        try {
-            return new SimpleDateFormat(RFC_2822).parse(elements.get(1).text()).getTime();
-        } catch (ParseException | IndexOutOfBoundsException e) {
-            return 0L;
-        }
+        });
     }
 
     /**
@@ -182,26 +141,54 @@ public class ASFGitSCMFile extends SCMFile {
     @NonNull
     @Override
     protected Type type() throws IOException, InterruptedException {
-        String path = getPath();
-        int lastSlash = path.lastIndexOf('/');
-        String treeUrl = ASFGitSCMFileSystem.buildTemplateWithRemote("{+server}{?p}{;a,hb,f}", remote)
-                .set("a", "tree")
-                .set("hb", refOrHash)
-                .set("f", lastSlash == -1 ? null : path.substring(0, lastSlash))
-                .expand();
-        Document doc = fetchDocument(treeUrl);
-        Elements elements = doc.select("table.tree tr td.list a");
-        for (Element element : elements) {
-            if (element.text().equals(getName())) {
-                Element mode = element.parent().previousElementSibling().previousElementSibling();
-                if (mode.text().startsWith("d")) {
-                    return Type.DIRECTORY;
-                } else if (mode.text().startsWith("-")) {
-                    return Type.REGULAR_FILE;
-                }
+        if (isRoot()) {
+            return Type.DIRECTORY;
+        }
+        ASFGitSCMFileSystem.TreeEntry listed = entry(true);
+        return listed == null ? Type.NONEXISTENT : listed.getType();
+    }
+
+    /**
+     * Gets the hash of the git object, i.e. the blob or the tree, of this file. Two files with the same object hash
+     * have the same content, so this can be used as a cheap equality check.
+     *
+     * @return the hash of the git object or {@code null} if the file does not exist or the hash is unknown.
+     * @throws IOException          if the listing of the parent directory could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the listing of the parent directory.
+     */
+    @CheckForNull
+    public String getObjectHash() throws IOException, InterruptedException {
+        if (isRoot()) {
+            return null;
+        }
+        ASFGitSCMFileSystem.TreeEntry listed = entry(true);
+        return listed == null ? null : listed.getHash();
+    }
+
+    /**
+     * Gets the entry of this file in the listing of the parent directory.
+     *
+     * @param fetch {@code true} to retrieve the listing of the parent directory if it has not been listed yet.
+     * @return the entry or {@code null} if the file does not exist or the parent directory has not been listed.
+     * @throws IOException          if the listing of the parent directory could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the listing of the parent directory.
+     */
+    @CheckForNull
+    private ASFGitSCMFileSystem.TreeEntry entry(boolean fetch) throws IOException, InterruptedException {
+        if (entry == null) {
+            String path = getPath();
+            int lastSlash = path.lastIndexOf('/');
+            String parentPath = lastSlash == -1 ? "" : path.substring(0, lastSlash);
+            Map<String, ASFGitSCMFileSystem.TreeEntry> listing;
+            try {
+                listing = fetch ? fs.listTree(parentPath) : fs.peekTree(parentPath);
+            } catch (FileNotFoundException e) {
+                // the parent directory does not exist
+                return null;
             }
+            entry = listing == null ? null : listing.get(getName());
         }
-        return Type.NONEXISTENT;
+        return entry;
     }
 
     /**
@@ -210,11 +197,19 @@ public class ASFGitSCMFile extends SCMFile {
     @NonNull
     @Override
     public InputStream content() throws IOException, InterruptedException {
+        InputStream snapshot = fs.openFromSnapshot(getPath());
+        if (snapshot != null) {
+            return snapshot;
+        }
         String blobUrl = ASFGitSCMFileSystem.buildTemplateWithRemote("{+server}{?p}{;a,f,hb}", remote)
                 .set("a", "blob_plain")
-                .set("hb", refOrHash)
+                .set("hb", hash)
                 .set("f", getPath())
                 .expand();
-        return new URL(blobUrl).openStream();
+        // key by blob when known so that the content is shared by every revision that has the same blob
+        ASFGitSCMFileSystem.TreeEntry listed = entry(false);
+        return BlobReader.read(blobUrl, listed != null && listed.getHash() != null
+                ? remote + "#" + listed.getHash()
+                : remote + "#" + hash + ":" + getPath());
     }
 }
@@ -15,22 +15,45 @@ package org.apache.jenkins.gitpubsub;
 
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.damnhandy.uri.template.UriTemplate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.plugins.git.GitSCM;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -45,19 +68,15 @@ import jenkins.scm.api.SCMFile;
 import jenkins.scm.api.SCMFileSystem;
 import jenkins.scm.api.SCMHead;
 import jenkins.scm.api.SCMRevision;
-import org.apache.commons.lang.WordUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.FastDateFormat;
 import org.eclipse.jgit.lib.Constants;
 import org.jsoup.HttpStatusException;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.jsoup.nodes.Node;
-import org.jsoup.nodes.TextNode;
 import org.jsoup.select.Elements;
 
-import static org.apache.jenkins.gitpubsub.ASFGitSCMNavigator.RFC_2822;
-
 /**
  * A {@link SCMFileSystem} that can browse a git repository exposed by a gitweb server on {@code apache.org}.
  */
@@ -67,6 +86,10 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
      * Extracts the SHA1 from the {@code h=} portion of a gitweb URL.
      */
     static final Pattern URL_EXTRACT_H = Pattern.compile(".*[;?]h=([a-fA-F0-9]{40})([;?].*)?");
+    /**
+     * Matches a full SHA1 commit hash.
+     */
+    static final Pattern COMMIT_HASH = Pattern.compile("[a-fA-F0-9]{40}");
     /**
      * Our logger.
      */
@@ -94,30 +117,177 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
      * Jenkins master.
      */
     private static /*mostly final*/ boolean DISABLE = Boolean.getBoolean(ASFGitSCMFileSystem.class.getName()+".DISABLE");
+    /**
+     * The maximum number of memoized commit and path timestamps.
+     */
+    private static /*mostly final*/ long TIMESTAMP_CACHE_SIZE =
+        Long.getLong(ASFGitSCMFileSystem.class.getName() + ".TIMESTAMP_CACHE_SIZE", 10000L);
+    /**
+     * The memoized timestamps of commits, keyed by {@code remote#commit}, and of paths, keyed by
+     * {@code remote#commit:path}. As the keys include a commit hash the timestamps never change.
+     */
+    private static final Cache<String, Long> TIMESTAMPS = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(0L, TIMESTAMP_CACHE_SIZE))
+            .build();
+    /**
+     * The maximum number of tree listings held in the {@link #TREES} cache shared by all file systems.
+     */
+    private static /*mostly final*/ long TREE_CACHE_SIZE =
+        Long.getLong(ASFGitSCMFileSystem.class.getName() + ".TREE_CACHE_SIZE", 1000L);
+    /**
+     * The parsed tree listings shared by all file systems, keyed by {@code remote#commit:path}. As the keys include a
+     * commit hash the listings never change.
+     */
+    private static final Cache<String, Map<String, TreeEntry>> TREES = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(0L, TREE_CACHE_SIZE))
+            .build();
+    /**
+     * The maximum number of short log pages held in the {@link #SHORTLOGS} cache.
+     */
+    private static /*mostly final*/ long SHORTLOG_CACHE_SIZE =
+        Long.getLong(ASFGitSCMFileSystem.class.getName() + ".SHORTLOG_CACHE_SIZE", 1000L);
+    /**
+     * The commit hashes listed on each page of the short log of a commit, keyed by {@code remote#commit:page}. As the
+     * keys include a commit hash the pages never change.
+     */
+    private static final Cache<String, List<String>> SHORTLOGS = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(0L, SHORTLOG_CACHE_SIZE))
+            .build();
+    /**
+     * The maximum number of paths held in the {@link #ABSENT} cache.
+     */
+    private static /*mostly final*/ long ABSENT_CACHE_SIZE =
+        Long.getLong(ASFGitSCMFileSystem.class.getName() + ".ABSENT_CACHE_SIZE", 10000L);
+    /**
+     * The directories known not to exist, keyed by {@code remote#commit:path}. As the keys include a commit hash the
+     * entries never need to expire.
+     */
+    private static final Cache<String, Boolean> ABSENT = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(0L, ABSENT_CACHE_SIZE))
+            .build();
+    /**
+     * How long a tag that has no tag page is remembered as a lightweight tag. Tag refs can be replaced, so unlike the
+     * commit pinned caches these entries expire.
+     */
+    private static /*mostly final*/ long LIGHTWEIGHT_TAG_TTL_MILLIS =
+        Long.getLong(ASFGitSCMFileSystem.class.getName() + ".LIGHTWEIGHT_TAG_TTL_MILLIS", 600000L);
+    /**
+     * The tags known to be lightweight, keyed by {@code remote#ref}.
+     */
+    private static final Cache<String, Boolean> LIGHTWEIGHT_TAGS = CacheBuilder.newBuilder()
+            .maximumSize(10000L)
+            .expireAfterWrite(Math.max(0L, LIGHTWEIGHT_TAG_TTL_MILLIS), TimeUnit.MILLISECONDS)
+            .build();
+    /**
+     * The maximum number of tree listings that will be retrieved concurrently by {@link #prefetch(Collection, int)}
+     * across all file systems.
+     */
+    private static /*mostly final*/ int PREFETCH_CONCURRENCY =
+        Integer.getInteger(ASFGitSCMFileSystem.class.getName() + ".PREFETCH_CONCURRENCY", 4);
+    /**
+     * A mode switch, if greater than {@code 0} then once a file system has read more than this many files it will
+     * download the GitWeb snapshot archive of the revision and serve all further reads from the archive. (This is
+     * package visible to support testing)
+     */
+    static /*mostly final*/ int SNAPSHOT_THRESHOLD =
+        Integer.getInteger(ASFGitSCMFileSystem.class.getName() + ".SNAPSHOT_THRESHOLD", 0);
+    /**
+     * The maximum number of commit pages that {@link #changesSince(SCMRevision, OutputStream)} will retrieve while
+     * walking the parents of the revision before giving up and using the short log, which lists 50 commits per
+     * page. Commits already in the {@link CommitStore} do not count towards the limit.
+     */
+    private static /*mostly final*/ int LINEAR_WALK_MAX_FETCHES =
+        Integer.getInteger(ASFGitSCMFileSystem.class.getName() + ".LINEAR_WALK_MAX_FETCHES", 10);
+    /**
+     * The executor used by {@link #prefetch(Collection, int)}.
+     */
+    private static final ExecutorService PREFETCH_EXECUTOR = createPrefetchExecutor();
     /**
      * The Git URL from which the project and gitweb server can be derived.
      */
     private final String remote;
     /**
-     * The ref or hash that the file is being accessed for.
+     * The ref that this file system was resolved from or {@code null} if it was built for a specific revision.
+     */
+    private final String ref;
+    /**
+     * The hash that the files are being accessed for.
+     */
+    private final String hash;
+    /**
+     * {@code true} if {@link #ref} is known to be a lightweight tag.
+     */
+    private final boolean lightweightTag;
+    /**
+     * The parsed tree listings of {@link #hash} keyed by directory path, the root is keyed by {@code ""}.
+     */
+    private final ConcurrentMap<String, Map<String, TreeEntry>> trees = new ConcurrentHashMap<>();
+    /**
+     * The number of files that have been read.
+     */
+    private final AtomicInteger reads = new AtomicInteger();
+    /**
+     * The unpacked snapshot archive of {@link #hash} once downloaded.
+     */
+    @CheckForNull
+    private volatile SnapshotStore snapshot;
+    /**
+     * Set if the snapshot archive could not be used, in which case files will be read individually.
      */
-    private final String refOrHash;
+    private volatile boolean snapshotFailed;
 
     /**
-     * Constructor.
+     * Constructor. If no revision is supplied then the head is resolved to a commit hash once, reusing the
+     * {@link RefSnapshot} of the remote if available, so that all subsequent requests address the same commit.
      *
      * @param remote the remote.
      * @param head   the head.
      * @param rev    the revision.
+     * @throws IOException          if the head could not be resolved.
+     * @throws InterruptedException if interrupted while resolving the head.
      */
-    public ASFGitSCMFileSystem(String remote, SCMHead head, SCMRevision rev) {
+    public ASFGitSCMFileSystem(String remote, SCMHead head, SCMRevision rev) throws IOException, InterruptedException {
         super(rev instanceof AbstractGitSCMSource.SCMRevisionImpl ? rev : null);
         this.remote = remote;
-        this.refOrHash = rev instanceof AbstractGitSCMSource.SCMRevisionImpl
-                ? ((AbstractGitSCMSource.SCMRevisionImpl) rev).getHash()
-                : (head instanceof GitTagSCMHead
-                        ? Constants.R_TAGS + head.getName()
-                        : Constants.R_HEADS + head.getName());
+        if (rev instanceof AbstractGitSCMSource.SCMRevisionImpl) {
+            this.ref = null;
+            this.hash = ((AbstractGitSCMSource.SCMRevisionImpl) rev).getHash();
+            this.lightweightTag = false;
+            return;
+        }
+        String resolved = null;
+        boolean lightweight = false;
+        if (head instanceof GitTagSCMHead) {
+            this.ref = Constants.R_TAGS + head.getName();
+            RefSnapshot.Tag tag = RefSnapshot.of(remote).getTag(head.getName());
+            if (tag != null) {
+                resolved = tag.getCommitHash();
+                lightweight = !tag.isAnnotated();
+            }
+        } else {
+            this.ref = Constants.R_HEADS + head.getName();
+            RefState.Pushed pushed = RefState.peek(remote, ref);
+            if (pushed != null && !pushed.isDeleted()) {
+                resolved = pushed.getHash();
+            } else {
+                RefSnapshot snapshot = RefSnapshot.lookup(remote);
+                resolved = snapshot == null ? null : snapshot.getHeadHash(head.getName());
+            }
+        }
+        if (resolved == null) {
+            String commitUrl = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
+                    .set("a", "commit")
+                    .set("h", ref)
+                    .expand();
+            Document doc = fetchDocument(commitUrl);
+            Elements elements = doc.select("table.object_header tr td.sha1");
+            if (elements.isEmpty()) {
+                throw new IOException("Unexpected response body for page " + commitUrl + ", expecting a commit hash");
+            }
+            resolved = recordCommit(remote, doc).getHash();
+        }
+        this.hash = resolved;
+        this.lightweightTag = lightweight;
     }
 
     /**
@@ -125,58 +295,224 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
      */
     @Override
     public long lastModified() throws IOException, InterruptedException {
-        if (refOrHash.startsWith(Constants.R_TAGS)) {
-            String tagUrl = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
-                    .set("a", "tag")
-                    .set("h", refOrHash)
-                    .expand();
-            Document doc;
-            try {
-                doc = fetchDocument(tagUrl);
-            } catch (HttpStatusException e) {
-                if (e.getStatusCode() == 404) {
-                    // must be a lightweight tag
-                    doc = null;
-                } else {
-                    throw e;
-                }
+        if (ref != null && ref.startsWith(Constants.R_TAGS) && !lightweightTag) {
+            Long time = TelescopeImpl.tagTimestamp(remote, ref);
+            if (time != null) {
+                return time;
             }
-            if (doc != null) {
-                Elements elements = doc.select("table.object_header tr td span.datetime");
-                try {
-                    return new SimpleDateFormat(RFC_2822).parse(elements.get(0).text())
-                            .getTime();
-                } catch (ParseException e) {
-                    throw new IOException(
-                            "Unexpected date format, expected RFC 2822, got " + elements.get(1).text());
-                } catch (IndexOutOfBoundsException e) {
-                    throw new IOException(
-                            "Unexpected response body, expecting two timestamps only got " + elements.size());
-                }
+        }
+        return commitTimestamp(remote, hash);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @NonNull
+    @Override
+    public SCMFile getRoot() {
+        return new ASFGitSCMFile(this, remote, hash);
+    }
+
+    /**
+     * Lists the entries of a directory, the GitWeb tree page for any directory is only fetched once per file system
+     * and is shared with other file systems for the same revision while it remains in the {@link #TREES} cache.
+     *
+     * @param path the path of the directory, {@code ""} for the root.
+     * @return the entries keyed by name in listing order.
+     * @throws FileNotFoundException if the directory does not exist.
+     * @throws IOException           if the tree page could not be retrieved.
+     * @throws InterruptedException  if interrupted while retrieving the tree page.
+     */
+    @NonNull
+    Map<String, TreeEntry> listTree(@NonNull String path) throws IOException, InterruptedException {
+        Map<String, TreeEntry> listing = trees.get(path);
+        if (listing != null) {
+            return listing;
+        }
+        SnapshotStore snapshot = this.snapshot;
+        if (snapshot != null && snapshot.isComplete()) {
+            listing = snapshot.list(path);
+            if (listing == null) {
+                throw new FileNotFoundException(path);
             }
+            Map<String, TreeEntry> existing = trees.putIfAbsent(path, listing);
+            return existing != null ? existing : listing;
         }
-        String commitUrl = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
-                .set("a", "commit")
-                .set("h", refOrHash)
+        String key = remote + "#" + hash + ":" + path;
+        listing = TREES.getIfPresent(key);
+        if (listing != null) {
+            Map<String, TreeEntry> existing = trees.putIfAbsent(path, listing);
+            return existing != null ? existing : listing;
+        }
+        if (ABSENT.getIfPresent(key) != null) {
+            throw new FileNotFoundException(path);
+        }
+        String treeUrl = buildTemplateWithRemote("{+server}{?p}{;a,hb,f}", remote)
+                .set("a", "tree")
+                .set("hb", hash)
+                .set("f", path.isEmpty() ? null : path)
                 .expand();
-        Document doc = fetchDocument(commitUrl);
-        Elements elements = doc.select("table.object_header tr td span.datetime");
+        Document doc;
         try {
-            return new SimpleDateFormat(RFC_2822).parse(elements.get(1).text()).getTime();
-        } catch (ParseException e) {
-            throw new IOException("Unexpected date format, expected RFC 2822, got " + elements.get(1).text());
-        } catch (IndexOutOfBoundsException e) {
-            throw new IOException("Unexpected response body, expecting two timestamps only got " + elements.size());
+            doc = fetchDocument(treeUrl);
+        } catch (HttpStatusException e) {
+            if (e.getStatusCode() == 404) {
+                ABSENT.put(key, Boolean.TRUE);
+                throw new FileNotFoundException(path);
+            }
+            throw e;
+        }
+        Map<String, TreeEntry> entries = new LinkedHashMap<>();
+        for (Element element : doc.select("table.tree tr td.list a")) {
+            String name = element.text();
+            if (".".equals(name) || "..".equals(name)) {
+                continue;
+            }
+            String mode = element.parent().previousElementSibling().previousElementSibling().text();
+            SCMFile.Type type;
+            if (mode.startsWith("d")) {
+                type = SCMFile.Type.DIRECTORY;
+            } else if (mode.startsWith("-")) {
+                type = SCMFile.Type.REGULAR_FILE;
+            } else if (mode.startsWith("l")) {
+                type = SCMFile.Type.LINK;
+            } else {
+                type = SCMFile.Type.OTHER;
+            }
+            // the blob and tree links carry the hash of the object
+            Matcher href = URL_EXTRACT_H.matcher(element.attr("href"));
+            entries.put(name, new TreeEntry(type, href.matches() ? href.group(1).toLowerCase(Locale.ENGLISH) : null));
         }
+        listing = Collections.unmodifiableMap(entries);
+        TREES.put(key, listing);
+        Map<String, TreeEntry> existing = trees.putIfAbsent(path, listing);
+        return existing != null ? existing : listing;
     }
 
     /**
-     * {@inheritDoc}
+     * Gets the entries of a directory if they have already been listed.
+     *
+     * @param path the path of the directory, {@code ""} for the root.
+     * @return the entries keyed by name in listing order or {@code null} if the directory has not been listed.
+     */
+    @CheckForNull
+    Map<String, TreeEntry> peekTree(@NonNull String path) {
+        return trees.get(path);
+    }
+
+    /**
+     * Opens a file from the snapshot archive of the revision, downloading the archive once more than
+     * {@link #SNAPSHOT_THRESHOLD} files have been read.
+     *
+     * @param path the path of the file.
+     * @return the content of the file or {@code null} if the file should be read individually, which includes files
+     * that are not in the archive.
+     * @throws IOException          if the archive has been closed.
+     * @throws InterruptedException if interrupted while downloading the archive.
+     */
+    @CheckForNull
+    InputStream openFromSnapshot(@NonNull String path) throws IOException, InterruptedException {
+        int threshold = SNAPSHOT_THRESHOLD;
+        if (snapshot == null && (threshold <= 0 || reads.incrementAndGet() <= threshold || snapshotFailed)) {
+            return null;
+        }
+        SnapshotStore snapshot;
+        synchronized (this) {
+            snapshot = this.snapshot;
+            if (snapshot == null && !snapshotFailed) {
+                String snapshotUrl = buildTemplateWithRemote("{+server}{?p}{;a,h,sf}", remote)
+                        .set("a", "snapshot")
+                        .set("h", hash)
+                        .set("sf", "tgz")
+                        .expand();
+                try {
+                    snapshot = SnapshotStore.download(snapshotUrl);
+                    this.snapshot = snapshot;
+                } catch (IOException e) {
+                    LOGGER.log(Level.INFO, "Could not use snapshot " + snapshotUrl + ", reading files individually",
+                            e);
+                    snapshotFailed = true;
+                }
+            }
+        }
+        return snapshot == null || !snapshot.contains(path) ? null : snapshot.open(path);
+    }
+
+    /**
+     * Discards the snapshot archive, if any.
+     *
+     * @throws IOException if the snapshot archive could not be discarded.
      */
-    @NonNull
     @Override
-    public SCMFile getRoot() {
-        return new ASFGitSCMFile(remote, refOrHash);
+    public void close() throws IOException {
+        SnapshotStore snapshot;
+        synchronized (this) {
+            snapshot = this.snapshot;
+            this.snapshot = null;
+            // once closed we should not download the archive again
+            snapshotFailed = true;
+        }
+        if (snapshot != null) {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Retrieves the tree listings of the supplied directories, and of their subdirectories down to the supplied depth,
+     * in parallel so that subsequent {@link SCMFile#child(String)}, {@link SCMFile#getType()} and
+     * {@link SCMFile#children()} calls for those directories are answered from memory. Directories that do not exist
+     * are ignored.
+     *
+     * @param paths the paths of the directories, {@code ""} for the root.
+     * @param depth the number of levels of subdirectories to retrieve below each directory, {@code 0} to only retrieve
+     *              the supplied directories.
+     * @throws IOException          if a tree listing could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the tree listings.
+     */
+    public void prefetch(@NonNull Collection<String> paths, int depth) throws IOException, InterruptedException {
+        Set<String> level = new LinkedHashSet<>();
+        for (String path : paths) {
+            level.add(StringUtils.strip(path, "/"));
+        }
+        for (int i = 0; i <= depth && !level.isEmpty(); i++) {
+            Map<String, Future<Map<String, TreeEntry>>> pending = new LinkedHashMap<>();
+            for (final String path : level) {
+                pending.put(path, PREFETCH_EXECUTOR.submit(new Callable<Map<String, TreeEntry>>() {
+                    @Override
+                    public Map<String, TreeEntry> call() throws Exception {
+                        try {
+                            return listTree(path);
+                        } catch (FileNotFoundException e) {
+                            return Collections.emptyMap();
+                        }
+                    }
+                }));
+            }
+            Set<String> next = new LinkedHashSet<>();
+            try {
+                for (Map.Entry<String, Future<Map<String, TreeEntry>>> entry : pending.entrySet()) {
+                    for (Map.Entry<String, TreeEntry> child : entry.getValue().get().entrySet()) {
+                        if (child.getValue().getType() == SCMFile.Type.DIRECTORY) {
+                            next.add(entry.getKey().isEmpty() ? child.getKey() : entry.getKey() + "/" + child.getKey());
+                        }
+                    }
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                }
+                throw new IOException("Could not prefetch trees of " + remote, cause);
+            } finally {
+                for (Future<?> future : pending.values()) {
+                    future.cancel(true);
+                }
+            }
+            level = next;
+        }
     }
 
     /**
@@ -191,11 +527,8 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
             // 2. what has changed between the current revision and the current revision
             return false;
         }
-        int count = 0;
-        SimpleDateFormat rfc = new SimpleDateFormat(RFC_2822);
         FastDateFormat iso = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ssZ");
         StringBuilder log = new StringBuilder(1024);
-        StringBuilder para = new StringBuilder(1024);
         String endHash;
         if (revision instanceof AbstractGitSCMSource.SCMRevisionImpl) {
             endHash = ((AbstractGitSCMSource.SCMRevisionImpl) revision).getHash().toLowerCase(Locale.ENGLISH);
@@ -204,90 +537,29 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
         }
         // this is the format expected by GitSCM, so we need to format each GHCommit with the same format
         // commit %H%ntree %T%nparent %P%nauthor %aN <%aE> %ai%ncommitter %cN <%cE> %ci%n%n%w(76,4,4)%s%n%n%b
-        UriTemplate shortLogTemplate = buildTemplateWithRemote("{+server}{?p}{;a,h,pg}", remote)
-                .set("a", "shortlog")
-                .set("h", refOrHash);
-        UriTemplate commitTemplate = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
-                .set("a", "commit");
+        List<CommitStore.Commit> linear = linearChangesSince(endHash);
+        if (linear != null) {
+            for (CommitStore.Commit commit : linear) {
+                log.setLength(0);
+                commit.appendChangeLog(log, iso);
+                changeLogStream.write(log.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            changeLogStream.flush();
+            return !linear.isEmpty();
+        }
+        int count = 0;
         int pg = 0;
         while (count < GitSCM.MAX_CHANGELOG) {
-            if (pg > 0) {
-                shortLogTemplate.set("pg", pg);
-            }
-            pg++;
-            Document doc = fetchDocument(shortLogTemplate.expand());
-            for (Element element : doc.select("table.shortlog tr td a.subject")) {
-                Matcher href = URL_EXTRACT_H.matcher(element.attr("href"));
-                if (!href.matches()) {
-                    continue;
-                }
-                if (href.group(1).toLowerCase(Locale.ENGLISH).equals(endHash)) {
+            List<String> page = shortLogPage(pg++);
+            if (page.isEmpty()) {
+                break;
+            }
+            for (String sha : page) {
+                if (sha.equals(endHash)) {
                     return count > 0;
                 }
-                commitTemplate.set("h", href.group(1));
-                Document commit = fetchDocument(commitTemplate.expand());
                 log.setLength(0);
-                Elements sha1s = commit.select("table.object_header tr td.sha1");
-                log.append("commit ").append(sha1s.get(0).text().trim()).append('\n');
-                log.append("tree ").append(sha1s.get(1).text().trim()).append('\n');
-                log.append("parent");
-                for (int i = 2; i < sha1s.size(); i++) {
-                    log.append(' ').append(sha1s.get(i).text().trim());
-                }
-                log.append('\n');
-                Elements persons = commit.select("table.object_header tr");
-                try {
-                    log.append("author ")
-                            .append(persons.get(0).child(1).text().trim())
-                            .append(' ')
-                            .append(iso.format(rfc.parse(persons.get(1).child(1).text())))
-                            .append('\n');
-                    log.append("committer ")
-                            .append(persons.get(2).child(1).text().trim())
-                            .append(' ')
-                            .append(iso.format(rfc.parse(persons.get(3).child(1).text())))
-                            .append('\n');
-                } catch (ParseException e) {
-                    throw new IOException(e);
-                }
-                log.append('\n');
-                Element messageDiv = commit.select("div.page_body").get(0);
-                para.setLength(0);
-                boolean inPara = false;
-                for (Node node : messageDiv.childNodes()) {
-                    if (node instanceof TextNode) {
-                        String s = ((TextNode) node).text().trim();
-                        if (!s.isEmpty()) {
-                            if (para.length() > 0) {
-                                para.append(' ');
-                            }
-                            para.append(s.replace('\u00a0', '\u0020'));
-                            inPara = true;
-                        }
-                    } else if (node instanceof Element) {
-                        if (((Element) node).tagName().equalsIgnoreCase("br")) {
-                            if (inPara) {
-                                inPara = false;
-                            } else {
-                                if (para.length() > 0) {
-                                    log.append("    ")
-                                            .append(WordUtils.wrap(para.toString(), 72, "\n    ", false));
-                                    para.setLength(0);
-                                }
-                                log.append("\n\n");
-                            }
-                        }
-                    }
-                }
-                if (para.length() > 0) {
-                    log.append("    ")
-                            .append(WordUtils.wrap(para.toString(), 72, "\n    ", false));
-                    log.append('\n');
-                }
-                if (inPara) {
-                    log.append('\n');
-                }
-                log.append('\n');
+                commit(sha).appendChangeLog(log, iso);
                 changeLogStream.write(log.toString().getBytes(StandardCharsets.UTF_8));
                 changeLogStream.flush();
                 count++;
@@ -299,6 +571,103 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
         return count > 0;
     }
 
+    /**
+     * Walks the history from {@link #hash} back to the supplied commit using the parents recorded in the
+     * {@link CommitStore}, which only needs the commit pages of commits that have not been seen before. This only
+     * gives the same answer as {@code git log} for linear history, so the walk is abandoned at the first merge. The
+     * walk is also abandoned once it has retrieved {@link #LINEAR_WALK_MAX_FETCHES} commit pages, or once it reaches
+     * a commit older than the (known) commit to stop at, as after a force push the commit to stop at will not be
+     * found by walking the parents and the short log is the cheaper way to list a long history.
+     *
+     * @param endHash the (lower case) hash of the commit to stop at or {@code null} to walk to the root.
+     * @return the commits newest first, or {@code null} if the history is not linear or not worth walking.
+     * @throws IOException          if a commit page could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving a commit page.
+     */
+    @CheckForNull
+    private List<CommitStore.Commit> linearChangesSince(@CheckForNull String endHash)
+            throws IOException, InterruptedException {
+        List<CommitStore.Commit> result = new ArrayList<>();
+        CommitStore.Commit end = endHash == null ? null : CommitStore.get(endHash);
+        int fetches = 0;
+        String current = hash.toLowerCase(Locale.ENGLISH);
+        while (result.size() < GitSCM.MAX_CHANGELOG && !current.equals(endHash)) {
+            CommitStore.Commit commit = CommitStore.get(current);
+            if (commit == null) {
+                if (fetches++ >= LINEAR_WALK_MAX_FETCHES) {
+                    return null;
+                }
+                commit = commit(current);
+            }
+            if (commit.getParents().size() > 1
+                    || end != null && commit.getCommitterTime() < end.getCommitterTime()) {
+                return null;
+            }
+            result.add(commit);
+            if (commit.getParents().isEmpty()) {
+                break;
+            }
+            current = commit.getParents().get(0).toLowerCase(Locale.ENGLISH);
+        }
+        return result;
+    }
+
+    /**
+     * Gets a commit from the {@link CommitStore}, retrieving and recording the commit page if the commit has not been
+     * seen before.
+     *
+     * @param sha the hash of the commit.
+     * @return the commit.
+     * @throws IOException          if the commit page could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the commit page.
+     */
+    @NonNull
+    private CommitStore.Commit commit(@NonNull String sha) throws IOException, InterruptedException {
+        CommitStore.Commit commit = CommitStore.get(sha);
+        if (commit == null) {
+            commit = recordCommit(remote, fetchDocument(buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
+                    .set("a", "commit")
+                    .set("h", sha)
+                    .expand()));
+        }
+        return commit;
+    }
+
+    /**
+     * Gets the (lower case) commit hashes on a page of the GitWeb short log of {@link #hash}. As the short log of a
+     * commit never changes, each page is only retrieved once while it remains in the {@link #SHORTLOGS} cache.
+     *
+     * @param pg the page number, starting from {@code 0}.
+     * @return the commit hashes, empty if there are no more pages.
+     * @throws IOException          if the page could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the page.
+     */
+    @NonNull
+    private List<String> shortLogPage(int pg) throws IOException, InterruptedException {
+        String key = remote + "#" + hash + ":" + pg;
+        List<String> page = SHORTLOGS.getIfPresent(key);
+        if (page != null) {
+            return page;
+        }
+        UriTemplate shortLogTemplate = buildTemplateWithRemote("{+server}{?p}{;a,h,pg}", remote)
+                .set("a", "shortlog")
+                .set("h", hash);
+        if (pg > 0) {
+            shortLogTemplate.set("pg", pg);
+        }
+        Document doc = fetchDocument(shortLogTemplate.expand());
+        List<String> hashes = new ArrayList<>();
+        for (Element element : doc.select("table.shortlog tr td a.subject")) {
+            Matcher href = URL_EXTRACT_H.matcher(element.attr("href"));
+            if (href.matches()) {
+                hashes.add(href.group(1).toLowerCase(Locale.ENGLISH));
+            }
+        }
+        page = Collections.unmodifiableList(hashes);
+        SHORTLOGS.put(key, page);
+        return page;
+    }
+
     /**
      * Builds a {@link UriTemplate} from the supplied template and the {@link GitSCMSource#getRemote()}.
      * @param template the template, must include {@code {+server}} for the server and {@code {?p}} for the project.
@@ -326,6 +695,105 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
         return result;
     }
 
+    /**
+     * Records a commit page that has been retrieved in the {@link CommitStore} and seeds the shared
+     * {@link #TIMESTAMPS} cache with its committer timestamp.
+     *
+     * @param remote the remote.
+     * @param doc    the commit page.
+     * @return the commit.
+     * @throws IOException if the page is not a commit page.
+     */
+    @NonNull
+    static CommitStore.Commit recordCommit(@NonNull String remote, @NonNull Document doc) throws IOException {
+        CommitStore.Commit commit = CommitStore.record(doc);
+        TIMESTAMPS.put(remote + "#" + commit.getHash(), commit.getCommitterTime());
+        return commit;
+    }
+
+    /**
+     * Gets the committer timestamp of a commit, the timestamp of any commit is only retrieved once while it remains
+     * in the shared {@link #TIMESTAMPS} cache.
+     *
+     * @param remote     the remote.
+     * @param commitHash the hash of the commit.
+     * @return the committer timestamp.
+     * @throws IOException          if the commit page could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the commit page.
+     */
+    static long commitTimestamp(@NonNull final String remote, @NonNull final String commitHash)
+            throws IOException, InterruptedException {
+        return timestamp(remote + "#" + commitHash, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                CommitStore.Commit commit = CommitStore.get(commitHash);
+                if (commit != null) {
+                    return commit.getCommitterTime();
+                }
+                String commitUrl = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
+                        .set("a", "commit")
+                        .set("h", commitHash)
+                        .expand();
+                return CommitStore.record(fetchDocument(commitUrl)).getCommitterTime();
+            }
+        });
+    }
+
+    /**
+     * Gets a memoized timestamp from the shared {@link #TIMESTAMPS} cache, concurrent callers for the same key share
+     * a single load. Only keys that identify immutable objects (i.e. that include a commit hash) may be used.
+     *
+     * @param key    the key.
+     * @param loader the loader to use if the timestamp is not in the cache.
+     * @return the timestamp.
+     * @throws IOException          if the timestamp could not be loaded.
+     * @throws InterruptedException if interrupted while loading the timestamp.
+     */
+    static long timestamp(@NonNull String key, @NonNull Callable<Long> loader)
+            throws IOException, InterruptedException {
+        try {
+            return TIMESTAMPS.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new IOException("Could not determine timestamp of " + key, cause);
+        }
+    }
+
+    /**
+     * Parses a GitWeb timestamp.
+     *
+     * @param text the timestamp in RFC 2822 format.
+     * @return the timestamp in milliseconds since the epoch.
+     * @throws IOException if the timestamp is not in RFC 2822 format.
+     */
+    static long parseTimestamp(@NonNull String text) throws IOException {
+        try {
+            return ZonedDateTime.parse(text.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IOException("Unexpected date format, expected RFC 2822, got " + text, e);
+        }
+    }
+
+    /**
+     * Creates the executor used by {@link #prefetch(Collection, int)}.
+     *
+     * @return the executor.
+     */
+    private static ExecutorService createPrefetchExecutor() {
+        int threads = Math.max(1, PREFETCH_CONCURRENCY);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), ASFGitSCMFileSystem.class.getName() + ".prefetch"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     static void preRequestSleep() throws InterruptedException {
         long preRequestSleepMillis = Math.max(0L, Math.min(30000L, PRE_REQUEST_SLEEP_MILLIS));
         if (preRequestSleepMillis > 0L) {
@@ -335,11 +803,67 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
         }
     }
 
+    /**
+     * Gets the timeout for remote operations.
+     *
+     * @return the timeout in milliseconds.
+     */
+    static int requestTimeout() {
+        return REQUEST_TIMEOUT;
+    }
+
     static Document fetchDocument(String commitUrl) throws InterruptedException, IOException {
         preRequestSleep();
         return Jsoup.parse(new URL(commitUrl), REQUEST_TIMEOUT);
     }
 
+    /**
+     * An entry in a tree listing.
+     */
+    static final class TreeEntry {
+        /**
+         * The type of the entry.
+         */
+        @NonNull
+        private final SCMFile.Type type;
+        /**
+         * The hash of the blob or tree object of the entry.
+         */
+        @CheckForNull
+        private final String hash;
+
+        /**
+         * Constructor.
+         *
+         * @param type the type of the entry.
+         * @param hash the hash of the blob or tree object of the entry.
+         */
+        TreeEntry(@NonNull SCMFile.Type type, @CheckForNull String hash) {
+            this.type = type;
+            this.hash = hash;
+        }
+
+        /**
+         * Gets the type of the entry.
+         *
+         * @return the type of the entry.
+         */
+        @NonNull
+        SCMFile.Type getType() {
+            return type;
+        }
+
+        /**
+         * Gets the hash of the blob or tree object of the entry.
+         *
+         * @return the hash of the object or {@code null} if GitWeb did not render it.
+         */
+        @CheckForNull
+        String getHash() {
+            return hash;
+        }
+    }
+
     /**
      * A {@link GitSCMTelescope} for GitWeb services on {@code apache.org}.
      */
@@ -400,48 +924,31 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
         public long getTimestamp(@NonNull String remote, StandardCredentials credentials, @NonNull String refOrHash)
                 throws IOException, InterruptedException {
             if (refOrHash.startsWith(Constants.R_TAGS)) {
-                String tagUrl = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
-                        .set("a", "tag")
-                        .set("h", refOrHash)
-                        .expand();
-                Document doc;
-                try {
-                    doc = fetchDocument(tagUrl);
-                } catch (HttpStatusException e) {
-                    if (e.getStatusCode() == 404) {
-                        // must be a lightweight tag
-                        doc = null;
-                    } else {
-                        throw e;
-                    }
-                }
-                if (doc != null) {
-                    Elements elements = doc.select("table.object_header tr td span.datetime");
-                    try {
-                        return new SimpleDateFormat(RFC_2822).parse(elements.get(0).text())
-                                .getTime();
-                    } catch (ParseException e) {
-                        throw new IOException(
-                                "Unexpected date format, expected RFC 2822, got " + elements.get(1).text());
-                    } catch (IndexOutOfBoundsException e) {
-                        throw new IOException(
-                                "Unexpected response body for page " + tagUrl + ", expecting two timestamps only got " + elements.size());
+                RefSnapshot snapshot = RefSnapshot.peek(remote);
+                RefSnapshot.Tag tag = snapshot == null
+                        ? null
+                        : snapshot.getTag(refOrHash.substring(Constants.R_TAGS.length()));
+                if (tag == null || tag.isAnnotated()) {
+                    Long time = tagTimestamp(remote, refOrHash);
+                    if (time != null) {
+                        return time;
                     }
+                } else if (tag.getCommitHash() != null) {
+                    return commitTimestamp(remote, tag.getCommitHash().toLowerCase(Locale.ENGLISH));
                 }
             }
+            if (COMMIT_HASH.matcher(refOrHash).matches()) {
+                return commitTimestamp(remote, refOrHash.toLowerCase(Locale.ENGLISH));
+            }
+            RefState.Pushed pushed = RefState.peek(remote, refOrHash);
+            if (pushed != null && !pushed.isDeleted() && refOrHash.startsWith(Constants.R_HEADS)) {
+                return commitTimestamp(remote, pushed.getHash());
+            }
             String commitUrl = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
                     .set("a", "commit")
                     .set("h", refOrHash)
                     .expand();
-            Document doc = fetchDocument(commitUrl);
-            Elements elements = doc.select("table.object_header tr td span.datetime");
-            try {
-                return new SimpleDateFormat(RFC_2822).parse(elements.get(1).text()).getTime();
-            } catch (ParseException e) {
-                throw new IOException("Unexpected date format, expected RFC 2822, got " + elements.get(1).text());
-            } catch (IndexOutOfBoundsException e) {
-                throw new IOException("Unexpected response body, expecting two timestamps only got " + elements.size());
-            }
+            return recordCommit(remote, fetchDocument(commitUrl)).getCommitterTime();
         }
 
         /**
@@ -452,76 +959,38 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
                                        @NonNull String refOrHash)
                 throws IOException, InterruptedException {
             if (refOrHash.startsWith(Constants.R_TAGS)) {
-                // check if this is an annotated tag... if it is we need to get the tag object revision
-                String tagUrl = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
-                        .set("a", "tag")
-                        .set("h", refOrHash)
-                        .expand();
-                Document doc;
-                try {
-                    doc = fetchDocument(tagUrl);
-                } catch (HttpStatusException e) {
-                    if (e.getStatusCode() == 404) {
-                        // must be a lightweight tag
-                        doc = null;
-                    } else {
-                        throw e;
+                String tagName = refOrHash.substring(Constants.R_TAGS.length());
+                RefSnapshot.Tag tag = RefSnapshot.of(remote).getTag(tagName);
+                if (tag == null || tag.isAnnotated()) {
+                    // check if this is an annotated tag... if it is we need to get the tag object revision
+                    Long time = tagTimestamp(remote, refOrHash);
+                    if (time != null && tag != null && tag.getObjectHash() != null) {
+                        return new GitTagSCMRevision(new GitTagSCMHead(tagName, time), tag.getObjectHash());
                     }
                 }
-                if (doc != null) {
-                    long time;
-                    Elements elements = doc.select("table.object_header tr td span.datetime");
-                    try {
-                        time = new SimpleDateFormat(RFC_2822).parse(elements.get(0).text())
-                                .getTime();
-                    } catch (ParseException e) {
-                        throw new IOException(
-                                "Unexpected date format, expected RFC 2822, got " + elements.get(1).text());
-                    } catch (IndexOutOfBoundsException e) {
-                        throw new IOException(
-                                "Unexpected response body for page " + tagUrl + ", expecting two timestamps only got " + elements.size());
-                    }
-                    // now let's get the revision of the tag object...
-                    String actionUrl = buildTemplateWithRemote("{+server}{?p}{;a}", remote)
-                            .set("a", "tags")
-                            .expand();
-                    doc = fetchDocument(actionUrl);
-                    elements = doc.select("table.tags tr td a.name");
-                    for (Element element : elements) {
-                        if (refOrHash.equals(Constants.R_TAGS + element.text())) {
-                            Elements links = element.parent().parent().select("td.selflink a");
-                            if (links.isEmpty()) {
-                                // assumption violated, bail
-                                break;
-                            }
-                            String href = links.get(0).attr("href");
-                            Matcher matcher = URL_EXTRACT_H.matcher(href);
-                            if (matcher.matches()) {
-                                return new GitTagSCMRevision(
-                                        new GitTagSCMHead(refOrHash.substring(Constants.R_TAGS.length()), time),
-                                        matcher.group(1));
-                            }
-
-                        }
-                    }
+            }
+            if (refOrHash.startsWith(Constants.R_HEADS)) {
+                String branchName = refOrHash.substring(Constants.R_HEADS.length());
+                RefState.Pushed pushed = RefState.peek(remote, refOrHash);
+                if (pushed != null) {
+                    return pushed.isDeleted()
+                            ? null
+                            : new AbstractGitSCMSource.SCMRevisionImpl(new SCMHead(branchName), pushed.getHash());
+                }
+                RefSnapshot snapshot = RefSnapshot.lookup(remote);
+                String hash = snapshot == null ? null : snapshot.getHeadHash(branchName);
+                if (hash != null) {
+                    return new AbstractGitSCMSource.SCMRevisionImpl(new SCMHead(branchName), hash);
                 }
             }
             String commitUrl = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
                     .set("a", "commit")
                     .set("h", refOrHash)
                     .expand();
-            Document doc = fetchDocument(commitUrl);
-            Elements elements = doc.select("table.object_header tr td.sha1");
-            String revision = elements.get(0).text();
+            CommitStore.Commit commit = recordCommit(remote, fetchDocument(commitUrl));
+            String revision = commit.getHash();
             if (refOrHash.startsWith(Constants.R_TAGS)) {
-                elements = doc.select("table.object_header tr td span.datetime");
-                long time;
-                try {
-                    time =
-                            new SimpleDateFormat(RFC_2822).parse(elements.get(1).text()).getTime();
-                } catch (ParseException e) {
-                    throw new IOException("Unexpected date format, expected RFC 2822, got " + elements.get(1).text());
-                }
+                long time = commit.getCommitterTime();
                 return new GitTagSCMRevision(new GitTagSCMHead(refOrHash.substring(Constants.R_TAGS.length()), time),
                         revision);
             } else if (refOrHash.startsWith(Constants.R_HEADS)) {
@@ -540,65 +1009,43 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
         public Iterable<SCMRevision> getRevisions(@NonNull String remote, StandardCredentials credentials,
                                                   @NonNull Set<ReferenceType> referenceTypes)
                 throws IOException, InterruptedException {
+            Iterable<SCMRevision> unchanged = IndexWatermark.unchanged(remote, referenceTypes);
+            if (unchanged != null) {
+                LOGGER.log(Level.FINE, "No pushes to {0} since it was last indexed", remote);
+                return unchanged;
+            }
+            long started = System.currentTimeMillis();
+            RefSnapshot snapshot = RefSnapshot.of(remote);
             List<String> result = new ArrayList<>();
             List<String> tagRev = new ArrayList<>();
-            TYPES:
             for (ReferenceType referenceType : referenceTypes) {
-                String actionUrl;
-                Document doc;
-                Elements elements;
-                String prefix;
                 switch (referenceType) {
                     case HEAD:
-                        actionUrl = buildTemplateWithRemote("{+server}{?p}{;a}", remote)
-                                .set("a", "heads")
-                                .expand();
-                        doc = fetchDocument(actionUrl);
-                        elements = doc.select("table.heads tr td a.name");
-                        prefix = Constants.R_HEADS;
+                        for (String name : snapshot.getHeads()) {
+                            result.add(Constants.R_HEADS + name);
+                            tagRev.add(null);
+                        }
                         break;
                     case TAG:
-                        actionUrl = buildTemplateWithRemote("{+server}{?p}{;a}", remote)
-                                .set("a", "tags")
-                                .expand();
-                        doc = fetchDocument(actionUrl);
-                        elements = doc.select("table.tags tr td a.name");
-                        prefix = Constants.R_TAGS;
+                        for (Map.Entry<String, RefSnapshot.Tag> entry : snapshot.getTags().entrySet()) {
+                            result.add(Constants.R_TAGS + entry.getKey());
+                            tagRev.add(entry.getValue().getRevisionHash());
+                        }
                         break;
                     default:
                         LOGGER.log(Level.WARNING, "Ignoring unexpected reference type {0}", referenceType);
-                        continue TYPES;
-                }
-                for (Element element : elements) {
-                    result.add(prefix + element.text());
-                    if (referenceType != ReferenceType.TAG) {
-                        tagRev.add(null);
-                    } else {
-                        // resolve the revision of the tag
-                        Elements links = element.parent().parent().select("td.selflink a");
-                        String href;
-                        if (!links.isEmpty()) {
-                            // annotated tag
-                            href = links.get(0).attr("href");
-                        } else {
-                            // lightweight tag
-                            href = element.attr("href");
-                        }
-                        if (href != null) {
-                            Matcher matcher = URL_EXTRACT_H.matcher(href);
-                            if (matcher.matches()) {
-                                tagRev.add(matcher.group(1));
-                            } else {
-                                tagRev.add(null);
-                            }
-                        } else {
-                            tagRev.add(null);
-                        }
-                    }
+                        break;
                 }
             }
-            return new AbstractList<SCMRevision>() {
+            List<SCMRevision> revisions = new AbstractList<SCMRevision>() {
+                /**
+                 * The resolved revisions, guarded by {@code this}.
+                 */
                 private final List<SCMRevision> cache = new ArrayList<>(result.size());
+                /**
+                 * How many revisions are still to be resolved, guarded by {@code this}.
+                 */
+                private int unresolved = result.size();
 
                 {
                     for (int i = 0; i < result.size(); i++) {
@@ -610,7 +1057,7 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
                  * {@inheritDoc}
                  */
                 @Override
-                public SCMRevision get(int index) {
+                public synchronized SCMRevision get(int index) {
                     SCMRevision r = cache.get(index);
                     if (r == null) {
                         String hash = tagRev.get(index);
@@ -626,7 +1073,7 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
                             } catch (IOException | InterruptedException e) {
                                 throw new RuntimeException("Tag retrieval Exception for " + result.get(index).substring(Constants.R_TAGS.length()), e);
                             }
-                            cache.set(index, r);
+                            resolved(index, r);
                         }
                     }
                     if (r == null) {
@@ -635,11 +1082,24 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
                         } catch (IOException | InterruptedException e) {
                             throw new RuntimeException("Annotated Tag retrieval Exception for :" + result.get(index), e);
                         }
-                        cache.set(index, r);
+                        resolved(index, r);
                     }
                     return r;
                 }
 
+                /**
+                 * Records a resolved revision, the listing is only remembered by {@link IndexWatermark} once every
+                 * revision has been resolved so that a reused listing never goes back to GitWeb.
+                 *
+                 * @param index    the index.
+                 * @param revision the revision or {@code null} if the ref could not be resolved.
+                 */
+                private void resolved(int index, @CheckForNull SCMRevision revision) {
+                    if (revision != null && cache.set(index, revision) == null && --unresolved == 0) {
+                        IndexWatermark.indexed(remote, referenceTypes, started, cache);
+                    }
+                }
+
                 /**
                  * {@inheritDoc}
                  */
@@ -648,6 +1108,10 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
                     return result.size();
                 }
             };
+            if (result.isEmpty()) {
+                IndexWatermark.indexed(remote, referenceTypes, started, revisions);
+            }
+            return revisions;
         }
 
         /**
@@ -656,15 +1120,62 @@ public class ASFGitSCMFileSystem extends SCMFileSystem {
         @Override
         public String getDefaultTarget(@NonNull String remote, StandardCredentials credentials)
                 throws IOException, InterruptedException {
-            String commitUrl = buildTemplateWithRemote("{+server}{?p}{;a}", remote)
-                    .set("a", "heads")
+            String currentHead = RefSnapshot.of(remote).getCurrentHead();
+            return currentHead == null ? null : Constants.R_HEADS + currentHead;
+        }
+
+        /**
+         * Retrieves the timestamp of an annotated tag. When the ref listing has the hash of the tag object, the
+         * timestamp is memoized against that hash in the shared {@link #TIMESTAMPS} cache.
+         *
+         * @param remote    the remote.
+         * @param refOrHash the tag ref.
+         * @return the timestamp of the tag or {@code null} if the tag is not an annotated tag.
+         * @throws IOException          if the tag could not be retrieved.
+         * @throws InterruptedException if interrupted while retrieving the tag.
+         */
+        private static Long tagTimestamp(@NonNull String remote, @NonNull String refOrHash)
+                throws IOException, InterruptedException {
+            if (LIGHTWEIGHT_TAGS.getIfPresent(remote + "#" + refOrHash) != null) {
+                return null;
+            }
+            RefSnapshot snapshot = refOrHash.startsWith(Constants.R_TAGS) ? RefSnapshot.peek(remote) : null;
+            RefSnapshot.Tag tag = snapshot == null
+                    ? null
+                    : snapshot.getTag(refOrHash.substring(Constants.R_TAGS.length()));
+            String key = tag != null && tag.isAnnotated() && tag.getObjectHash() != null
+                    ? remote + "#" + tag.getObjectHash().toLowerCase(Locale.ENGLISH)
+                    : null;
+            Long cached = key == null ? null : TIMESTAMPS.getIfPresent(key);
+            if (cached != null) {
+                return cached;
+            }
+            String tagUrl = buildTemplateWithRemote("{+server}{?p}{;a,h}", remote)
+                    .set("a", "tag")
+                    .set("h", refOrHash)
                     .expand();
-            Document doc = fetchDocument(commitUrl);
-            Elements elements = doc.select("table.heads tr td.current_head a.name");
-            if (elements.size() > 0) {
-                return Constants.R_HEADS + elements.get(0).text();
+            Document doc;
+            try {
+                doc = fetchDocument(tagUrl);
+            } catch (HttpStatusException e) {
+                if (e.getStatusCode() == 404) {
+                    // must be a lightweight tag
+                    LIGHTWEIGHT_TAGS.put(remote + "#" + refOrHash, Boolean.TRUE);
+                    return null;
+                }
+                throw e;
             }
-            return null;
+            Elements elements = doc.select("table.object_header tr td span.datetime");
+            if (elements.isEmpty()) {
+                throw new IOException(
+                        "Unexpected response body for page " + tagUrl + ", expecting two timestamps only got "
+                                + elements.size());
+            }
+            long time = parseTimestamp(elements.get(0).text());
+            if (key != null) {
+                TIMESTAMPS.put(key, time);
+            }
+            return time;
         }
     }
 }
@@ -13,26 +13,23 @@
  */
 package org.apache.jenkins.gitpubsub;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.Util;
-import hudson.console.HyperlinkNote;
 import hudson.model.Action;
 import hudson.model.Descriptor;
 import hudson.model.TaskListener;
 import hudson.util.ListBoxModel;
 import java.io.IOException;
-import java.net.URL;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nonnull;
 import jenkins.plugins.git.GitSCMBuilder;
@@ -68,10 +65,6 @@ import org.kohsuke.stapler.DataBoundSetter;
  */
 public class ASFGitSCMNavigator extends SCMNavigator {
 
-    /**
-     * Our object mapper.
-     */
-    private static final ObjectMapper MAPPER = new ObjectMapper();
     /**
      * The date format used by GitWeb.
      */
@@ -84,6 +77,12 @@ public class ASFGitSCMNavigator extends SCMNavigator {
      * The second Git hosting for Apache.
      */
     static final String GIT_BOX = "https://gitbox.apache.org/repos/asf";
+    /**
+     * The number of repositories with the most recent push activity to scan before the rest of the catalogue,
+     * {@code 0} to scan in catalogue order.
+     */
+    private static /*mostly final*/ int ACTIVE_FIRST =
+            Integer.getInteger(ASFGitSCMNavigator.class.getName() + ".ACTIVE_FIRST", 100);
     /**
      * The server that we are navigating.
      */
@@ -166,93 +165,185 @@ public class ASFGitSCMNavigator extends SCMNavigator {
      */
     @Override
     public void visitSources(@NonNull final SCMSourceObserver observer) throws IOException, InterruptedException {
-        ASFGitSCMFileSystem.preRequestSleep();
-        try (ASFGitSCMNavigatorRequest request = new ASFGitSCMNavigatorContext()
-                .withTraits(traits)
-                .newRequest(this, observer)) {
-            JsonNode repositories = MAPPER.readTree(new URL(server.replaceAll("repos/[^/]+$", "repositories.json")));
-            int count = 0;
-            String line;
+        final ASFGitSCMNavigatorContext context = new ASFGitSCMNavigatorContext().withTraits(traits);
+        try (final ASFGitSCMNavigatorRequest request = context.newRequest(this, observer);
+             final ScanReadAhead readAhead = ScanReadAhead.create(server, context.smartHttpRefs())) {
             observer.getListener().getLogger().format("%n  Checking repositories...%n");
-            for (JsonNode project : repositories.path("projects")) {
-                for (Iterator<String> i = project.path("repositories").fieldNames(); i.hasNext(); ) {
-                    final String repo = i.next();
-                    count++;
-                    observer.getListener().getLogger().format("%n    Checking repository %s%n",
-                            HyperlinkNote
-                                    .encodeTo(server + "?p=" + URLEncoder.encode(repo, "UTF-8") + ".git;a=summary",
-                                            repo));
-                    if (request.process(repo, new SCMNavigatorRequest.SourceLambda() {
-                        @NonNull
-                        @Override
-                        public SCMSource create(@NonNull String projectName) throws IOException, InterruptedException {
-                            return new ASFGitSCMSourceBuilder(getId() + "::" + projectName,
-                                    server, projectName
-                            )
-                                    .withTraits(traits)
-                                    .build();
-                        }
-                    }, null, new SCMNavigatorRequest.Witness() {
+            final ScanLog log = ScanLog.scan(server, observer.getListener());
+            final CatalogueSnapshot.Builder snapshot = new CatalogueSnapshot.Builder();
+            // the busiest repositories go first so that they are buildable soonest after a restart
+            final Set<String> processed = new HashSet<>();
+            CatalogueSnapshot latest = CatalogueSnapshot.latest(server);
+            if (latest != null && ACTIVE_FIRST > 0) {
+                final List<String> active = PushActivity.mostActive(server, latest.getRepositories(), ACTIVE_FIRST);
+                // the candidates come from the last scan, so check them against the current catalogue
+                final Map<String, RepositoryCatalogue.Repository> current = new HashMap<>();
+                if (!active.isEmpty()) {
+                    RepositoryCatalogue.fetch(RepositoryCatalogue.urlOf(server), new RepositoryCatalogue.Visitor() {
                         @Override
-                        public void record(@NonNull String projectName, boolean isMatch) {
-                            if (isMatch) {
-                                observer.getListener().getLogger().format("      Proposing %s%n", projectName);
-                            } else {
-                                observer.getListener().getLogger().format("      Ignoring %s%n", projectName);
+                        public boolean visit(@NonNull RepositoryCatalogue.Repository repository) {
+                            if (active.contains(repository.getName())) {
+                                current.put(repository.getName(), repository);
                             }
+                            return current.size() == active.size();
                         }
-                    })) {
-                        observer.getListener().getLogger()
-                                .format("%n  %d repositories were processed (query complete)%n",
-                                        count);
+                    });
+                }
+                for (String repo : active) {
+                    RepositoryCatalogue.Repository repository = current.get(repo);
+                    if (repository == null
+                            || context.isProjectExcluded(repository.getProject())
+                            || context.isInactive(Math.max(repository.getLastUpdated(),
+                            PushActivity.lastPush(ASFGitSCMSourceBuilder.remoteOf(server, repo))))) {
+                        continue;
+                    }
+                    processed.add(repo);
+                    if (processRepository(log, context, request, repo)) {
+                        log.summary(true);
                         return;
                     }
                 }
             }
-            observer.getListener().getLogger().format("%n  %d repositories were processed%n", count);
+            // the catalogue is shared with the other navigators of the server
+            if (RepositoryCatalogue.fetch(RepositoryCatalogue.urlOf(server), new RepositoryCatalogue.Visitor() {
+                @Override
+                public boolean visit(@NonNull RepositoryCatalogue.Repository repository)
+                        throws IOException, InterruptedException {
+                    snapshot.add(repository);
+                    if (context.isProjectExcluded(repository.getProject())) {
+                        log.skippedProject();
+                        return false;
+                    }
+                    if (context.isInactive(Math.max(repository.getLastUpdated(),
+                            PushActivity.lastPush(ASFGitSCMSourceBuilder.remoteOf(server, repository.getName()))))) {
+                        log.skippedInactive();
+                        return false;
+                    }
+                    if (processed.contains(repository.getName())) {
+                        return false;
+                    }
+                    if (readAhead == null) {
+                        return processRepository(log, context, request, repository.getName());
+                    }
+                    // the observer is not thread safe, so only the retrieval runs ahead of the processing
+                    readAhead.add(repository.getName(), !request.isExcluded(repository.getName()));
+                    for (String repo = readAhead.next(false); repo != null; repo = readAhead.next(false)) {
+                        if (processRepository(log, context, request, repo)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            }) || readAhead != null && drain(log, context, request, readAhead)) {
+                log.summary(true);
+                return;
+            }
+            log.summary(false);
+            // a complete walk is the baseline that the catalogue poll compares against
+            CatalogueSnapshot.update(server, snapshot.build());
         }
     }
 
+    /**
+     * Processes the repositories still waiting in the read ahead once the whole catalogue has been read.
+     *
+     * @param log       the scan log.
+     * @param context   the context.
+     * @param request   the request.
+     * @param readAhead the read ahead.
+     * @return {@code true} if the request has been completed.
+     * @throws IOException          if there is an I/O error.
+     * @throws InterruptedException if interrupted.
+     */
+    private boolean drain(@NonNull ScanLog log, @NonNull ASFGitSCMNavigatorContext context,
+                          @NonNull ASFGitSCMNavigatorRequest request, @NonNull ScanReadAhead readAhead)
+            throws IOException, InterruptedException {
+        for (String repo = readAhead.next(true); repo != null; repo = readAhead.next(true)) {
+            if (processRepository(log, context, request, repo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void visitSource(@NonNull String sourceName, @NonNull SCMSourceObserver observer)
             throws IOException, InterruptedException {
-        try (ASFGitSCMNavigatorRequest request = new ASFGitSCMNavigatorContext()
-                .withTraits(traits)
-                .newRequest(this, observer)) {
-            observer.getListener().getLogger().format("%n    Checking repository %s%n",
-                    HyperlinkNote
-                            .encodeTo(server + "?p=" + URLEncoder.encode(sourceName, "UTF-8") + ".git;a=summary",
-                                    sourceName));
-            if (request.process(sourceName, new SCMNavigatorRequest.SourceLambda() {
+        final ASFGitSCMNavigatorContext context = new ASFGitSCMNavigatorContext().withTraits(traits);
+        try (ASFGitSCMNavigatorRequest request = context.newRequest(this, observer)) {
+            if (context.hasProjectFilters()) {
+                CatalogueSnapshot snapshot = CatalogueSnapshot.latest(server);
+                String project = snapshot == null ? null : snapshot.projectOf(sourceName);
+                if (project != null && context.isProjectExcluded(project)) {
+                    observer.getListener().getLogger().format("%n    Ignoring %s of project %s%n", sourceName, project);
+                    return;
+                }
+            }
+            if (processRepository(ScanLog.single(server, observer.getListener()), context, request, sourceName)) {
+                observer.getListener().getLogger().format("%n  1 repository was processed (query complete)%n");
+                return;
+            }
+            observer.getListener().getLogger().format("%n  1 repository was processed%n");
+        }
+    }
+
+    /**
+     * Logs and processes a single repository.
+     *
+     * @param log     the scan log.
+     * @param context the context.
+     * @param request the request.
+     * @param repo    the repository name.
+     * @return {@code true} if the request has been completed.
+     * @throws IOException          if there is an I/O error.
+     * @throws InterruptedException if interrupted.
+     */
+    private boolean processRepository(@NonNull final ScanLog log, @NonNull final ASFGitSCMNavigatorContext context,
+                                      @NonNull ASFGitSCMNavigatorRequest request, @NonNull String repo)
+            throws IOException, InterruptedException {
+        log.checking(repo);
+        try {
+            return request.process(repo, new SCMNavigatorRequest.SourceLambda() {
                 @NonNull
                 @Override
                 public SCMSource create(@NonNull String projectName) throws IOException, InterruptedException {
-                    return new ASFGitSCMSourceBuilder(getId() + "::" + projectName,
-                            server, projectName
-                    )
-                            .withTraits(traits)
-                            .build();
+                    return createSource(projectName);
                 }
             }, null, new SCMNavigatorRequest.Witness() {
                 @Override
                 public void record(@NonNull String projectName, boolean isMatch) {
                     if (isMatch) {
-                        observer.getListener().getLogger().format("      Proposing %s%n", projectName);
+                        log.proposed(projectName);
+                        RefPrewarmer.onProposed(ASFGitSCMSourceBuilder.remoteOf(server, projectName),
+                                context.smartHttpRefs());
                     } else {
-                        observer.getListener().getLogger().format("      Ignoring %s%n", projectName);
+                        log.ignored(projectName);
                     }
                 }
-            })) {
-                observer.getListener().getLogger().format("%n  1 repository was processed (query complete)%n");
-                return;
-            }
-            observer.getListener().getLogger().format("%n  1 repository was processed%n");
+            });
+        } finally {
+            log.checked();
         }
     }
 
+    /**
+     * Creates the source for the named repository.
+     *
+     * @param projectName the repository name.
+     * @return the source.
+     */
+    private GitSCMSource createSource(@NonNull String projectName) {
+        GitSCMSource source = new ASFGitSCMSourceBuilder(getId() + "::" + projectName, server, projectName)
+                .withTraits(traits)
+                .build();
+        // the source carries the setting, record it now so the first indexing does not wait for it to be read back
+        RefSnapshot.useSmartHttp(source.getRemote(), SmartHttpRefsSCMSourceTrait.isEnabled(source));
+        return source;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -14,6 +14,8 @@
 package org.apache.jenkins.gitpubsub;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.List;
 import jenkins.scm.api.SCMNavigator;
 import jenkins.scm.api.SCMSourceObserver;
 import jenkins.scm.api.trait.SCMNavigatorContext;
@@ -28,6 +30,9 @@ public class ASFGitSCMNavigatorContext
     private String objectDisplayName;
     private String objectDescription;
     private String objectUrl;
+    private boolean smartHttpRefs;
+    private final List<ASFProjectFilterSCMNavigatorTrait> projectFilters = new ArrayList<>();
+    private final List<ASFActivityFilterSCMNavigatorTrait> activityFilters = new ArrayList<>();
 
     public String avatarUrl() {
         return avatarUrl;
@@ -74,6 +79,70 @@ public class ASFGitSCMNavigatorContext
         return this;
     }
 
+    public boolean smartHttpRefs() {
+        return smartHttpRefs;
+    }
+
+    public ASFGitSCMNavigatorContext withSmartHttpRefs(boolean smartHttpRefs) {
+        this.smartHttpRefs = smartHttpRefs;
+        return this;
+    }
+
+    public ASFGitSCMNavigatorContext withProjectFilter(@NonNull ASFProjectFilterSCMNavigatorTrait projectFilter) {
+        this.projectFilters.add(projectFilter);
+        return this;
+    }
+
+    public ASFGitSCMNavigatorContext withActivityFilter(@NonNull ASFActivityFilterSCMNavigatorTrait activityFilter) {
+        this.activityFilters.add(activityFilter);
+        return this;
+    }
+
+    /**
+     * Checks whether the repositories of the supplied ASF project should be skipped.
+     *
+     * @param project the project name.
+     * @return {@code true} if any project filter does not select the project or the project is retired.
+     */
+    public boolean isProjectExcluded(@NonNull String project) {
+        for (ASFProjectFilterSCMNavigatorTrait projectFilter : projectFilters) {
+            if (!projectFilter.isSelected(project)) {
+                return true;
+            }
+        }
+        for (ASFActivityFilterSCMNavigatorTrait activityFilter : activityFilters) {
+            if (activityFilter.isRetired(project)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether any project filter applies.
+     *
+     * @return {@code true} if any project filter applies.
+     */
+    public boolean hasProjectFilters() {
+        return !projectFilters.isEmpty() || !activityFilters.isEmpty();
+    }
+
+    /**
+     * Checks whether a repository should be skipped because it has been inactive for too long.
+     *
+     * @param lastActivity the time of the last activity in milliseconds since the epoch, or {@code -1} if unknown.
+     * @return {@code true} if any activity filter considers the repository inactive.
+     */
+    public boolean isInactive(long lastActivity) {
+        long now = System.currentTimeMillis();
+        for (ASFActivityFilterSCMNavigatorTrait activityFilter : activityFilters) {
+            if (activityFilter.isInactive(lastActivity, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -45,13 +45,25 @@ public class ASFGitSCMSourceBuilder extends SCMSourceBuilder<ASFGitSCMSourceBuil
         return server;
     }
 
+    /**
+     * Gets the remote of a repository.
+     *
+     * @param server      the server.
+     * @param projectName the repository name.
+     * @return the remote.
+     */
+    @NonNull
+    static String remoteOf(@NonNull String server, @NonNull String projectName) {
+        return server + "/" + Util.rawEncode(projectName) + ".git";
+    }
+
     /**
      * {@inheritDoc}
      */
     @NonNull
     @Override
     public GitSCMSource build() {
-        GitSCMSource source = new GitSCMSource(server()+"/"+ Util.rawEncode(projectName())+".git");
+        GitSCMSource source = new GitSCMSource(remoteOf(server(), projectName()));
         source.withId(id());
         List<SCMSourceTrait> traits = new ArrayList<>(traits());
         try {
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import jenkins.scm.api.SCMNavigator;
+import jenkins.scm.api.trait.SCMNavigatorContext;
+import jenkins.scm.api.trait.SCMNavigatorTrait;
+import jenkins.scm.api.trait.SCMNavigatorTraitDescriptor;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A {@link SCMNavigatorTrait} that selects the ASF projects whose repositories a {@link ASFGitSCMNavigator} should
+ * consider. The repositories of the other projects are skipped as the catalogue is read, before any per repository
+ * work or logging.
+ */
+public class ASFProjectFilterSCMNavigatorTrait extends SCMNavigatorTrait {
+    /**
+     * The space separated wildcard patterns of the project names to include.
+     */
+    private final String includes;
+    /**
+     * The space separated wildcard patterns of the project names to exclude.
+     */
+    private final String excludes;
+
+    @DataBoundConstructor
+    public ASFProjectFilterSCMNavigatorTrait(String includes, String excludes) {
+        this.includes = StringUtils.defaultIfBlank(includes, "*").trim();
+        this.excludes = StringUtils.trimToEmpty(excludes);
+    }
+
+    public String getIncludes() {
+        return includes;
+    }
+
+    public String getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void decorateContext(SCMNavigatorContext<?, ?> context) {
+        ((ASFGitSCMNavigatorContext) context).withProjectFilter(this);
+    }
+
+    /**
+     * Checks whether the supplied project is selected.
+     *
+     * @param project the project name.
+     * @return {@code true} if the project matches the includes and does not match the excludes.
+     */
+    boolean isSelected(@NonNull String project) {
+        return matches(includes, project) && !matches(excludes, project);
+    }
+
+    /**
+     * Checks whether a name matches any of a space separated list of wildcard patterns.
+     *
+     * @param patterns the space separated wildcard patterns, where {@code *} matches any sequence of characters.
+     * @param name     the name.
+     * @return {@code true} if any of the patterns matches.
+     */
+    private static boolean matches(@NonNull String patterns, @NonNull String name) {
+        for (String pattern : StringUtils.split(patterns)) {
+            StringBuilder regex = new StringBuilder();
+            String[] parts = StringUtils.splitPreserveAllTokens(pattern, '*');
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    regex.append(".*");
+                }
+                if (!parts[i].isEmpty()) {
+                    regex.append(Pattern.quote(parts[i]));
+                }
+            }
+            if (Pattern.matches(regex.toString(), name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends SCMNavigatorTraitDescriptor {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Class<? extends SCMNavigatorContext> getContextClass() {
+            return ASFGitSCMNavigatorContext.class;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Class<? extends SCMNavigator> getNavigatorClass() {
+            return ASFGitSCMNavigator.class;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return Messages.ASFProjectFilterSCMNavigatorTrait_displayName();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads blobs from GitWeb with connect and read timeouts, an overall deadline and a maximum size. The response is
+ * always consumed and the connection released before the content is handed to the caller: small blobs are held in
+ * memory (and in a byte budgeted cache), large blobs are spilled to a temporary file that is deleted on close.
+ */
+final class BlobReader {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(BlobReader.class.getName());
+    /**
+     * The maximum size of blob that will be read, larger blobs will be rejected.
+     */
+    private static /*mostly final*/ long MAX_SIZE =
+            Long.getLong(BlobReader.class.getName() + ".MAX_SIZE", 64L * 1024 * 1024);
+    /**
+     * Blobs larger than this will be spilled to a temporary file rather than held in memory.
+     */
+    private static /*mostly final*/ int SPILL_THRESHOLD =
+            Integer.getInteger(BlobReader.class.getName() + ".SPILL_THRESHOLD", 1024 * 1024);
+    /**
+     * The maximum time to spend reading a single blob.
+     */
+    private static /*mostly final*/ long READ_DEADLINE_MILLIS =
+            Long.getLong(BlobReader.class.getName() + ".READ_DEADLINE_MILLIS", 120000L);
+    /**
+     * Blobs up to this size are eligible for the small blob cache.
+     */
+    private static /*mostly final*/ int CACHE_ENTRY_MAX_SIZE =
+            Integer.getInteger(BlobReader.class.getName() + ".CACHE_ENTRY_MAX_SIZE", 64 * 1024);
+    /**
+     * The total number of bytes that the small blob cache may hold.
+     */
+    private static /*mostly final*/ long CACHE_BUDGET_BYTES =
+            Long.getLong(BlobReader.class.getName() + ".CACHE_BUDGET_BYTES", 8L * 1024 * 1024);
+    /**
+     * The small blob cache, the keys must identify immutable content.
+     */
+    private static final Cache<String, byte[]> CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(Math.max(0L, CACHE_BUDGET_BYTES))
+            .weigher(new Weigher<String, byte[]>() {
+                @Override
+                public int weigh(String key, byte[] value) {
+                    return value.length;
+                }
+            })
+            .build();
+    /**
+     * The number of blob connections that have been opened and not yet released.
+     */
+    private static final AtomicInteger OPEN_CONNECTIONS = new AtomicInteger();
+
+    /**
+     * Utility class.
+     */
+    private BlobReader() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Reads a blob.
+     *
+     * @param url the URL of the raw blob.
+     * @param key the key that identifies the (immutable) content of the blob in the small blob cache.
+     * @return the content of the blob, the caller must close the stream.
+     * @throws IOException          if the blob could not be read or is too large.
+     * @throws InterruptedException if interrupted while reading the blob.
+     */
+    @NonNull
+    static InputStream read(@NonNull String url, @NonNull String key) throws IOException, InterruptedException {
+        byte[] cached = CACHE.getIfPresent(key);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+        ASFGitSCMFileSystem.preRequestSleep();
+        long deadline = System.currentTimeMillis() + READ_DEADLINE_MILLIS;
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        OPEN_CONNECTIONS.incrementAndGet();
+        try {
+            connection.setConnectTimeout(ASFGitSCMFileSystem.requestTimeout());
+            connection.setReadTimeout(ASFGitSCMFileSystem.requestTimeout());
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new FileNotFoundException(url);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected HTTP status " + status + " for " + url);
+            }
+            long length = connection.getContentLengthLong();
+            if (length > MAX_SIZE) {
+                throw new IOException("Blob " + url + " is " + length + " bytes, exceeds limit of " + MAX_SIZE);
+            }
+            try (InputStream in = connection.getInputStream()) {
+                return copy(url, key, in, deadline);
+            }
+        } finally {
+            connection.disconnect();
+            OPEN_CONNECTIONS.decrementAndGet();
+        }
+    }
+
+    /**
+     * Consumes the response body, spilling to a temporary file if it is too large to hold in memory.
+     *
+     * @param url      the URL of the raw blob.
+     * @param key      the cache key.
+     * @param in       the response body.
+     * @param deadline the time by which the body must have been read.
+     * @return the content of the blob.
+     * @throws IOException          if the blob could not be read or is too large.
+     * @throws InterruptedException if interrupted while reading the blob.
+     */
+    private static InputStream copy(String url, String key, InputStream in, long deadline)
+            throws IOException, InterruptedException {
+        byte[] buffer = new byte[8192];
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        OutputStream out = memory;
+        File spill = null;
+        long total = 0L;
+        boolean success = false;
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Timed out reading blob " + url);
+                }
+                total += count;
+                if (total > MAX_SIZE) {
+                    throw new IOException("Blob " + url + " exceeds limit of " + MAX_SIZE + " bytes");
+                }
+                if (spill == null && total > SPILL_THRESHOLD) {
+                    spill = File.createTempFile("asf-gitpubsub-blob", ".tmp");
+                    LOGGER.log(Level.FINE, "Spilling blob {0} to {1}", new Object[]{url, spill});
+                    out = new FileOutputStream(spill);
+                    memory.writeTo(out);
+                    memory = null;
+                }
+                out.write(buffer, 0, count);
+            }
+            out.close();
+            success = true;
+        } finally {
+            if (!success) {
+                out.close();
+                if (spill != null && !spill.delete()) {
+                    LOGGER.log(Level.FINE, "Could not delete {0}", spill);
+                }
+            }
+        }
+        if (spill != null) {
+            final File file = spill;
+            return new FileInputStream(file) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (file.exists() && !file.delete()) {
+                            LOGGER.log(Level.FINE, "Could not delete {0}", file);
+                        }
+                    }
+                }
+            };
+        }
+        byte[] content = memory.toByteArray();
+        if (content.length <= CACHE_ENTRY_MAX_SIZE) {
+            CACHE.put(key, content);
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * Gets the number of blob connections that have been opened and not yet released.
+     *
+     * @return the number of blob connections that have been opened and not yet released.
+     */
+    static int openConnections() {
+        return OPEN_CONNECTIONS.get();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.scm.SCM;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.plugins.git.GitSCMSource;
+import jenkins.scm.api.SCMNavigator;
+import jenkins.scm.api.SCMSource;
+import jenkins.scm.api.SCMSourceEvent;
+
+import static jenkins.scm.api.SCMEvent.Type.CREATED;
+import static jenkins.scm.api.SCMEvent.Type.REMOVED;
+
+/**
+ * Periodically reads the repository catalogue of each server that has been scanned and compares it with the previous
+ * {@link CatalogueSnapshot}. Added repositories are proposed and removed repositories reported as
+ * {@link SCMSourceEvent}s, which organization folders handle one repository at a time, so new repositories appear
+ * within minutes without the folder having to rescan every repository. The periodic folder scan remains the forced
+ * full scan that catches anything an event missed.
+ */
+@Extension
+public class CataloguePoll extends AsyncPeriodicWork {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(CataloguePoll.class.getName());
+    /**
+     * How often to read the catalogues, {@code 0} to disable.
+     */
+    private static /*mostly final*/ long PERIOD_MINUTES =
+            Long.getLong(CataloguePoll.class.getName() + ".PERIOD_MINUTES", 5L);
+
+    /**
+     * Constructor.
+     */
+    public CataloguePoll() {
+        super("ASF repository catalogue poll");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(Math.max(1L, PERIOD_MINUTES));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        if (PERIOD_MINUTES <= 0) {
+            return;
+        }
+        Set<String> servers = new LinkedHashSet<>();
+        servers.add(ASFGitSCMNavigator.GIT_BOX);
+        servers.add(ASFGitSCMNavigator.GIT_WIP);
+        servers.addAll(CatalogueSnapshot.servers());
+        for (String server : servers) {
+            if (CatalogueSnapshot.latest(server) == null) {
+                // nobody has scanned this server yet
+                continue;
+            }
+            try {
+                poll(server);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not read repository catalogue of " + server, e);
+            }
+        }
+    }
+
+    /**
+     * Reads the catalogue of the supplied server and fires events for the differences from the previous snapshot.
+     *
+     * @param server the server.
+     * @throws IOException          if the catalogue could not be read.
+     * @throws InterruptedException if interrupted while reading the catalogue.
+     */
+    static void poll(@NonNull final String server) throws IOException, InterruptedException {
+        final CatalogueSnapshot.Builder builder = new CatalogueSnapshot.Builder();
+        RepositoryCatalogue.fetch(RepositoryCatalogue.urlOf(server), new RepositoryCatalogue.Visitor() {
+            @Override
+            public boolean visit(@NonNull RepositoryCatalogue.Repository repository) {
+                builder.add(repository);
+                return false;
+            }
+        });
+        CatalogueSnapshot current = builder.build();
+        CatalogueSnapshot previous = CatalogueSnapshot.update(server, current);
+        if (previous == null || previous.getHash().equals(current.getHash())) {
+            return;
+        }
+        SortedSet<String> added = current.without(previous);
+        SortedSet<String> removed = previous.without(current);
+        LOGGER.log(Level.INFO, "Repository catalogue of {0} changed: {1} added, {2} removed",
+                new Object[]{server, added, removed});
+        for (String repo : added) {
+            SCMSourceEvent.fireNow(new CatalogueEvent(CREATED, server, repo));
+        }
+        for (String repo : removed) {
+            SCMSourceEvent.fireNow(new CatalogueEvent(REMOVED, server, repo));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Level getNormalLoggingLevel() {
+        return Level.FINE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Level getSlowLoggingLevel() {
+        return Level.FINE;
+    }
+
+    /**
+     * An event for a repository that has been added to or removed from the catalogue.
+     */
+    static class CatalogueEvent extends SCMSourceEvent<String> {
+        /**
+         * The server.
+         */
+        private final String server;
+
+        /**
+         * Constructor.
+         *
+         * @param type   the type of event.
+         * @param server the server.
+         * @param repo   the repository name.
+         */
+        CatalogueEvent(@NonNull Type type, @NonNull String server, @NonNull String repo) {
+            super(type, repo, RepositoryCatalogue.urlOf(server));
+            this.server = server;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isMatch(@NonNull SCMNavigator navigator) {
+            return navigator instanceof ASFGitSCMNavigator
+                    && server.equals(((ASFGitSCMNavigator) navigator).getServer());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isMatch(@NonNull SCMSource source) {
+            return source instanceof GitSCMSource
+                    && (server + "/" + Util.rawEncode(getPayload()) + ".git")
+                    .equals(((GitSCMSource) source).getRemote());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @NonNull
+        @Override
+        public String getSourceName() {
+            return getPayload();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isMatch(@NonNull SCM scm) {
+            return false;
+        }
+    }
+}
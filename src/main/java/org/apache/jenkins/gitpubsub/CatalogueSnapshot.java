@@ -0,0 +1,364 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * A compact record of the repositories listed in the catalogue of a server: the repository names of each project and
+ * a hash of those names. Comparing two snapshots tells us which repositories have been added or removed without
+ * having to process every repository again. The latest snapshot of each server is persisted in
+ * {@code JENKINS_HOME/caches/asf-gitpubsub-catalogue} so that it survives restarts.
+ */
+final class CatalogueSnapshot {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(CatalogueSnapshot.class.getName());
+    /**
+     * Our object mapper.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /**
+     * The latest snapshots keyed by server.
+     */
+    private static final ConcurrentMap<String, CatalogueSnapshot> LATEST = new ConcurrentHashMap<>();
+    /**
+     * The repository names keyed by project name.
+     */
+    @NonNull
+    private final SortedMap<String, SortedSet<String>> projects;
+    /**
+     * The hash of the repository names.
+     */
+    @NonNull
+    private final String hash;
+    /**
+     * When the snapshot was taken.
+     */
+    private final long timestamp;
+
+    /**
+     * Constructor.
+     *
+     * @param projects  the repository names keyed by project name.
+     * @param timestamp when the snapshot was taken.
+     */
+    private CatalogueSnapshot(@NonNull SortedMap<String, SortedSet<String>> projects, long timestamp) {
+        SortedMap<String, SortedSet<String>> copy = new TreeMap<>();
+        StringBuilder names = new StringBuilder();
+        for (Map.Entry<String, SortedSet<String>> project : projects.entrySet()) {
+            copy.put(project.getKey(), Collections.unmodifiableSortedSet(new TreeSet<>(project.getValue())));
+            for (String repo : project.getValue()) {
+                names.append(project.getKey()).append('/').append(repo).append('\n');
+            }
+        }
+        this.projects = Collections.unmodifiableSortedMap(copy);
+        this.hash = Util.getDigestOf(names.toString());
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Gets the latest snapshot of the supplied server, loading it from disk if necessary.
+     *
+     * @param server the server.
+     * @return the latest snapshot or {@code null} if the catalogue of the server has not been read yet.
+     */
+    @CheckForNull
+    static CatalogueSnapshot latest(@NonNull String server) {
+        CatalogueSnapshot snapshot = LATEST.get(server);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        File file = fileOf(server);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            JsonNode json = MAPPER.readTree(file);
+            SortedMap<String, SortedSet<String>> projects = new TreeMap<>();
+            for (Iterator<Map.Entry<String, JsonNode>> it = json.path("projects").fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> project = it.next();
+                SortedSet<String> repos = new TreeSet<>();
+                for (JsonNode repo : project.getValue()) {
+                    repos.add(repo.asText());
+                }
+                projects.put(project.getKey(), repos);
+            }
+            snapshot = new CatalogueSnapshot(projects, json.path("timestamp").asLong());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read catalogue snapshot " + file, e);
+            return null;
+        }
+        CatalogueSnapshot existing = LATEST.putIfAbsent(server, snapshot);
+        return existing != null ? existing : snapshot;
+    }
+
+    /**
+     * Records a new snapshot as the latest snapshot of the supplied server.
+     *
+     * @param server   the server.
+     * @param snapshot the snapshot.
+     * @return the previous snapshot or {@code null} if there was none.
+     */
+    @CheckForNull
+    static CatalogueSnapshot update(@NonNull String server, @NonNull CatalogueSnapshot snapshot) {
+        CatalogueSnapshot previous = latest(server);
+        LATEST.put(server, snapshot);
+        File file = fileOf(server);
+        if (file != null && (previous == null || !previous.hash.equals(snapshot.hash))) {
+            ObjectNode json = MAPPER.createObjectNode();
+            json.put("server", server);
+            json.put("timestamp", snapshot.timestamp);
+            ObjectNode projects = json.putObject("projects");
+            for (Map.Entry<String, SortedSet<String>> project : snapshot.projects.entrySet()) {
+                ArrayNode repos = projects.putArray(project.getKey());
+                for (String repo : project.getValue()) {
+                    repos.add(repo);
+                }
+            }
+            try {
+                if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                    throw new IOException("Could not create " + file.getParentFile());
+                }
+                File tmp = new File(file.getPath() + ".tmp");
+                MAPPER.writeValue(tmp, json);
+                if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                    throw new IOException("Could not replace " + file);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not save catalogue snapshot " + file, e);
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Forgets the in-memory copy of the latest snapshot of the supplied server, the next call to
+     * {@link #latest(String)} will load the persisted snapshot again.
+     *
+     * @param server the server.
+     */
+    static void invalidate(@NonNull String server) {
+        LATEST.remove(server);
+    }
+
+    /**
+     * Gets the servers that have a snapshot, including those whose snapshot has only been persisted by a previous
+     * run, so that servers other than the well known ones are still polled after a restart.
+     *
+     * @return the servers that have a snapshot.
+     */
+    @NonNull
+    static Set<String> servers() {
+        Set<String> result = new TreeSet<>(LATEST.keySet());
+        File dir = directory();
+        File[] files = dir == null ? null : dir.listFiles();
+        if (files == null) {
+            return result;
+        }
+        Set<String> known = new HashSet<>();
+        for (String server : result) {
+            known.add(Util.getDigestOf(server) + ".json");
+        }
+        for (File file : files) {
+            if (!file.isFile() || !file.getName().endsWith(".json") || known.contains(file.getName())) {
+                continue;
+            }
+            try {
+                String server = MAPPER.readTree(file).path("server").asText(null);
+                if (server != null && file.equals(fileOf(server)) && latest(server) != null) {
+                    result.add(server);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not read catalogue snapshot " + file, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the directory that holds the persisted snapshots.
+     *
+     * @return the directory or {@code null} if snapshots are only held in memory.
+     */
+    @CheckForNull
+    private static File directory() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return new File(jenkins.getRootDir(), "caches/asf-gitpubsub-catalogue");
+    }
+
+    /**
+     * Gets the file that holds the snapshot of the supplied server.
+     *
+     * @param server the server.
+     * @return the file or {@code null} if snapshots are only held in memory.
+     */
+    @CheckForNull
+    private static File fileOf(@NonNull String server) {
+        File dir = directory();
+        return dir == null ? null : new File(dir, Util.getDigestOf(server) + ".json");
+    }
+
+    /**
+     * Gets the hash of the repository names.
+     *
+     * @return the hash of the repository names.
+     */
+    @NonNull
+    String getHash() {
+        return hash;
+    }
+
+    /**
+     * Gets when the snapshot was taken.
+     *
+     * @return when the snapshot was taken.
+     */
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the repository names keyed by project name.
+     *
+     * @return the repository names keyed by project name.
+     */
+    @NonNull
+    SortedMap<String, SortedSet<String>> getProjects() {
+        return projects;
+    }
+
+    /**
+     * Gets the project that a repository belongs to.
+     *
+     * @param repo the repository name.
+     * @return the project name or {@code null} if the repository is not in this snapshot.
+     */
+    @CheckForNull
+    String projectOf(@NonNull String repo) {
+        for (Map.Entry<String, SortedSet<String>> project : projects.entrySet()) {
+            if (project.getValue().contains(repo)) {
+                return project.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the names of all the repositories.
+     *
+     * @return the names of all the repositories.
+     */
+    @NonNull
+    SortedSet<String> getRepositories() {
+        SortedSet<String> result = new TreeSet<>();
+        for (SortedSet<String> repos : projects.values()) {
+            result.addAll(repos);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the repositories that are in this snapshot but not in the supplied snapshot.
+     *
+     * @param other the other snapshot.
+     * @return the names of the repositories that are only in this snapshot.
+     */
+    @NonNull
+    SortedSet<String> without(@NonNull CatalogueSnapshot other) {
+        SortedSet<String> result = getRepositories();
+        if (!hash.equals(other.hash)) {
+            result.removeAll(other.getRepositories());
+        } else {
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Accumulates a snapshot while the catalogue is read.
+     */
+    static final class Builder {
+        /**
+         * The repository names keyed by project name.
+         */
+        private final SortedMap<String, SortedSet<String>> projects = new TreeMap<>();
+
+        /**
+         * Adds a repository.
+         *
+         * @param repository the repository.
+         * @return {@code this} for method chaining.
+         */
+        @NonNull
+        Builder add(@NonNull RepositoryCatalogue.Repository repository) {
+            return add(repository.getProject(), repository.getName());
+        }
+
+        /**
+         * Adds a repository.
+         *
+         * @param project the name of the project that the repository belongs to.
+         * @param repo    the name of the repository.
+         * @return {@code this} for method chaining.
+         */
+        @NonNull
+        Builder add(@NonNull String project, @NonNull String repo) {
+            SortedSet<String> repos = projects.get(project);
+            if (repos == null) {
+                repos = new TreeSet<>();
+                projects.put(project, repos);
+            }
+            repos.add(repo);
+            return this;
+        }
+
+        /**
+         * Builds the snapshot.
+         *
+         * @return the snapshot.
+         */
+        @NonNull
+        CatalogueSnapshot build() {
+            return new CatalogueSnapshot(projects, System.currentTimeMillis());
+        }
+    }
+}
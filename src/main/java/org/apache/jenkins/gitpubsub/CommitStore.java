@@ -0,0 +1,588 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.WordUtils;
+import org.apache.commons.lang.time.FastDateFormat;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.Elements;
+
+/**
+ * A persistent store of the commit metadata scraped from GitWeb commit pages. Commits never change, so once a commit
+ * page has been parsed it never needs to be requested again. The store is an append-only log of one JSON record per
+ * line in {@code JENKINS_HOME/caches/asf-gitpubsub-commits/commits.log} with an in-memory index of the record
+ * offsets and lengths, backed by a small in-memory cache of recently used records. Once the log holds more than
+ * {@link #MAX_COMMITS} records it is compacted down to the most recently appended ones.
+ */
+final class CommitStore {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(CommitStore.class.getName());
+    /**
+     * A kill switch, if {@code true} then commit metadata will only be held in memory.
+     */
+    private static /*mostly final*/ boolean DISABLE_PERSISTENCE =
+            Boolean.getBoolean(CommitStore.class.getName() + ".DISABLE_PERSISTENCE");
+    /**
+     * The maximum number of commits to keep in the log, when exceeded the oldest quarter is dropped.
+     */
+    private static /*mostly final*/ int MAX_COMMITS =
+            Integer.getInteger(CommitStore.class.getName() + ".MAX_COMMITS", 100000);
+    /**
+     * Our object mapper.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /**
+     * The recently used commits keyed by hash.
+     */
+    private static final Cache<String, Commit> RECENT = CacheBuilder.newBuilder()
+            .maximumSize(1024)
+            .build();
+    /**
+     * The log file or {@code null} if not yet opened or persistence is unavailable.
+     */
+    @CheckForNull
+    private static File file;
+    /**
+     * The open log or {@code null} if not yet opened or persistence is unavailable.
+     */
+    @CheckForNull
+    private static RandomAccessFile log;
+    /**
+     * The location of each record in the log keyed by commit hash.
+     */
+    private static final Map<String, Record> INDEX = new HashMap<>();
+    /**
+     * Set once we have tried to open the log with Jenkins available, or persistence is disabled.
+     */
+    private static boolean opened;
+
+    /**
+     * Utility class.
+     */
+    private CommitStore() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Gets the stored metadata of a commit.
+     *
+     * @param hash the commit hash.
+     * @return the commit or {@code null} if the commit has not been stored.
+     */
+    @CheckForNull
+    static Commit get(@NonNull String hash) {
+        String key = hash.toLowerCase(Locale.ENGLISH);
+        Commit commit = RECENT.getIfPresent(key);
+        if (commit != null) {
+            return commit;
+        }
+        byte[] bytes;
+        synchronized (CommitStore.class) {
+            RandomAccessFile log = open();
+            Record record = INDEX.get(key);
+            if (log == null || record == null) {
+                return null;
+            }
+            bytes = new byte[record.length];
+            try {
+                log.seek(record.offset);
+                log.readFully(bytes);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not read commit " + key, e);
+                return null;
+            }
+        }
+        try {
+            commit = Commit.fromJson(MAPPER.readTree(bytes));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not read commit " + key, e);
+            return null;
+        }
+        RECENT.put(key, commit);
+        return commit;
+    }
+
+    /**
+     * Parses a GitWeb commit page and stores the commit.
+     *
+     * @param doc the commit page.
+     * @return the commit.
+     * @throws IOException if the page could not be parsed.
+     */
+    @NonNull
+    static Commit record(@NonNull Document doc) throws IOException {
+        Commit commit = Commit.parse(doc);
+        String key = commit.getHash().toLowerCase(Locale.ENGLISH);
+        if (RECENT.getIfPresent(key) != null) {
+            return commit;
+        }
+        RECENT.put(key, commit);
+        byte[] json = MAPPER.writeValueAsBytes(commit.toJson());
+        byte[] line = Arrays.copyOf(json, json.length + 1);
+        line[json.length] = '\n';
+        synchronized (CommitStore.class) {
+            RandomAccessFile log = open();
+            if (log != null && !INDEX.containsKey(key)) {
+                try {
+                    long offset = log.length();
+                    log.seek(offset);
+                    log.write(line);
+                    INDEX.put(key, new Record(offset, json.length));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not persist commit " + key, e);
+                    return commit;
+                }
+                if (INDEX.size() > MAX_COMMITS) {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Could not compact commit store " + file, e);
+                    }
+                }
+            }
+        }
+        return commit;
+    }
+
+    /**
+     * Opens the log and rebuilds the index the first time the store is used once Jenkins is available.
+     *
+     * @return the log or {@code null} if persistence is unavailable.
+     */
+    @CheckForNull
+    private static RandomAccessFile open() {
+        if (opened) {
+            return log;
+        }
+        if (DISABLE_PERSISTENCE) {
+            opened = true;
+            return null;
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            // too early, try again on the next use
+            return null;
+        }
+        opened = true;
+        File file = new File(new File(jenkins.getRootDir(), "caches/asf-gitpubsub-commits"), "commits.log");
+        try {
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Could not create " + file.getParentFile());
+            }
+            long valid = rebuild(file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if (raf.length() > valid) {
+                // partial write from a crash, discard the tail
+                LOGGER.log(Level.INFO, "Truncating corrupt commit store {0} at {1}", new Object[]{file, valid});
+                raf.setLength(valid);
+            }
+            CommitStore.file = file;
+            log = raf;
+            LOGGER.log(Level.FINE, "Opened commit store {0} with {1} commits", new Object[]{file, INDEX.size()});
+        } catch (IOException e) {
+            INDEX.clear();
+            LOGGER.log(Level.WARNING, "Could not open commit store " + file + ", commits will only be held in memory",
+                    e);
+        }
+        return log;
+    }
+
+    /**
+     * Rebuilds the index from the log with a single buffered pass.
+     *
+     * @param file the log.
+     * @return the length of the valid prefix of the log, anything after that is a corrupt or incomplete record.
+     * @throws IOException if the log could not be read.
+     */
+    private static long rebuild(@NonNull File file) throws IOException {
+        INDEX.clear();
+        if (!file.isFile()) {
+            return 0L;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 65536)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+            long offset = 0L;
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                JsonNode node;
+                try {
+                    node = MAPPER.readTree(line.toByteArray());
+                } catch (IOException e) {
+                    node = null;
+                }
+                if (node == null || !node.hasNonNull("commit")) {
+                    return offset;
+                }
+                INDEX.put(node.get("commit").asText().toLowerCase(Locale.ENGLISH), new Record(offset, line.size()));
+                offset += line.size() + 1;
+                line.reset();
+            }
+            // anything left in the line buffer is an incomplete final record
+            return offset;
+        }
+    }
+
+    /**
+     * Rewrites the log keeping only the most recently appended three quarters of {@link #MAX_COMMITS} records.
+     *
+     * @throws IOException if the log could not be rewritten, in which case the current log remains in use.
+     */
+    private static void compact() throws IOException {
+        RandomAccessFile log = CommitStore.log;
+        File file = CommitStore.file;
+        if (log == null || file == null) {
+            return;
+        }
+        List<Map.Entry<String, Record>> records = new ArrayList<>(INDEX.entrySet());
+        Collections.sort(records, new Comparator<Map.Entry<String, Record>>() {
+            @Override
+            public int compare(Map.Entry<String, Record> o1, Map.Entry<String, Record> o2) {
+                return Long.compare(o1.getValue().offset, o2.getValue().offset);
+            }
+        });
+        records = records.subList(Math.max(0, records.size() - MAX_COMMITS / 4 * 3), records.size());
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Map<String, Record> index = new HashMap<>(records.size() * 2);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 65536)) {
+            long offset = 0L;
+            for (Map.Entry<String, Record> entry : records) {
+                byte[] bytes = new byte[entry.getValue().length];
+                log.seek(entry.getValue().offset);
+                log.readFully(bytes);
+                out.write(bytes);
+                out.write('\n');
+                index.put(entry.getKey(), new Record(offset, bytes.length));
+                offset += bytes.length + 1;
+            }
+        } catch (IOException e) {
+            if (!tmp.delete()) {
+                LOGGER.log(Level.FINE, "Could not delete {0}", tmp);
+            }
+            throw e;
+        }
+        log.close();
+        CommitStore.log = null;
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            INDEX.clear();
+            INDEX.putAll(index);
+        } finally {
+            // either the compacted log or, if the move failed, the untouched original that INDEX still describes
+            CommitStore.log = new RandomAccessFile(file, "rw");
+        }
+        LOGGER.log(Level.FINE, "Compacted commit store {0} to {1} commits", new Object[]{file, INDEX.size()});
+    }
+
+    /**
+     * The location of a record in the log.
+     */
+    private static final class Record {
+        /**
+         * The offset of the record.
+         */
+        private final long offset;
+        /**
+         * The length of the record in bytes, excluding the terminating newline.
+         */
+        private final int length;
+
+        /**
+         * Constructor.
+         *
+         * @param offset the offset of the record.
+         * @param length the length of the record in bytes, excluding the terminating newline.
+         */
+        Record(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The metadata of a commit.
+     */
+    static final class Commit {
+        /**
+         * The commit hash.
+         */
+        @NonNull
+        private final String hash;
+        /**
+         * The tree hash.
+         */
+        @NonNull
+        private final String tree;
+        /**
+         * The parent commit hashes.
+         */
+        @NonNull
+        private final List<String> parents;
+        /**
+         * The author name and email.
+         */
+        @NonNull
+        private final String author;
+        /**
+         * The author timestamp.
+         */
+        private final long authorTime;
+        /**
+         * The committer name and email.
+         */
+        @NonNull
+        private final String committer;
+        /**
+         * The committer timestamp.
+         */
+        private final long committerTime;
+        /**
+         * The commit message formatted as required by {@link hudson.plugins.git.GitSCM} changelogs.
+         */
+        @NonNull
+        private final String message;
+
+        /**
+         * Constructor.
+         *
+         * @param hash          the commit hash.
+         * @param tree          the tree hash.
+         * @param parents       the parent commit hashes.
+         * @param author        the author name and email.
+         * @param authorTime    the author timestamp.
+         * @param committer     the committer name and email.
+         * @param committerTime the committer timestamp.
+         * @param message       the formatted commit message.
+         */
+        Commit(@NonNull String hash, @NonNull String tree, @NonNull List<String> parents, @NonNull String author,
+               long authorTime, @NonNull String committer, long committerTime, @NonNull String message) {
+            this.hash = hash;
+            this.tree = tree;
+            this.parents = Collections.unmodifiableList(new ArrayList<>(parents));
+            this.author = author;
+            this.authorTime = authorTime;
+            this.committer = committer;
+            this.committerTime = committerTime;
+            this.message = message;
+        }
+
+        /**
+         * Parses a GitWeb commit page.
+         *
+         * @param doc the commit page.
+         * @return the commit.
+         * @throws IOException if the page is not a commit page.
+         */
+        @NonNull
+        static Commit parse(@NonNull Document doc) throws IOException {
+            Elements sha1s = doc.select("table.object_header tr td.sha1");
+            Elements persons = doc.select("table.object_header tr");
+            Elements messageDivs = doc.select("div.page_body");
+            if (sha1s.size() < 2 || persons.size() < 4 || messageDivs.isEmpty()) {
+                throw new IOException("Unexpected response body, expecting a commit page");
+            }
+            List<String> parents = new ArrayList<>();
+            for (int i = 2; i < sha1s.size(); i++) {
+                parents.add(sha1s.get(i).text().trim());
+            }
+            StringBuilder log = new StringBuilder(1024);
+            StringBuilder para = new StringBuilder(1024);
+            boolean inPara = false;
+            for (Node node : messageDivs.get(0).childNodes()) {
+                if (node instanceof TextNode) {
+                    String s = ((TextNode) node).text().trim();
+                    if (!s.isEmpty()) {
+                        if (para.length() > 0) {
+                            para.append(' ');
+                        }
+                        para.append(s.replace('\u00a0', '\u0020'));
+                        inPara = true;
+                    }
+                } else if (node instanceof Element) {
+                    if (((Element) node).tagName().equalsIgnoreCase("br")) {
+                        if (inPara) {
+                            inPara = false;
+                        } else {
+                            if (para.length() > 0) {
+                                log.append("    ")
+                                        .append(WordUtils.wrap(para.toString(), 72, "\n    ", false));
+                                para.setLength(0);
+                            }
+                            log.append("\n\n");
+                        }
+                    }
+                }
+            }
+            if (para.length() > 0) {
+                log.append("    ")
+                        .append(WordUtils.wrap(para.toString(), 72, "\n    ", false));
+                log.append('\n');
+            }
+            if (inPara) {
+                log.append('\n');
+            }
+            return new Commit(
+                    sha1s.get(0).text().trim(),
+                    sha1s.get(1).text().trim(),
+                    parents,
+                    persons.get(0).child(1).text().trim(),
+                    ASFGitSCMFileSystem.parseTimestamp(persons.get(1).child(1).select("span.datetime").text()),
+                    persons.get(2).child(1).text().trim(),
+                    ASFGitSCMFileSystem.parseTimestamp(persons.get(3).child(1).select("span.datetime").text()),
+                    log.toString()
+            );
+        }
+
+        /**
+         * Reads a commit from its JSON record.
+         *
+         * @param node the JSON record.
+         * @return the commit.
+         * @throws IOException if the record is invalid.
+         */
+        @NonNull
+        static Commit fromJson(@NonNull JsonNode node) throws IOException {
+            List<String> parents = new ArrayList<>();
+            for (JsonNode parent : node.path("parents")) {
+                parents.add(parent.asText());
+            }
+            if (!node.hasNonNull("commit") || !node.hasNonNull("tree") || !node.hasNonNull("message")) {
+                throw new IOException("Invalid commit record");
+            }
+            return new Commit(
+                    node.get("commit").asText(),
+                    node.get("tree").asText(),
+                    parents,
+                    node.path("author").asText(),
+                    node.path("authorTime").asLong(),
+                    node.path("committer").asText(),
+                    node.path("committerTime").asLong(),
+                    node.get("message").asText()
+            );
+        }
+
+        /**
+         * Converts this commit to its JSON record.
+         *
+         * @return the JSON record.
+         */
+        @NonNull
+        JsonNode toJson() {
+            ObjectNode node = MAPPER.createObjectNode();
+            node.put("commit", hash);
+            node.put("tree", tree);
+            ArrayNode parents = node.putArray("parents");
+            for (String parent : this.parents) {
+                parents.add(parent);
+            }
+            node.put("author", author);
+            node.put("authorTime", authorTime);
+            node.put("committer", committer);
+            node.put("committerTime", committerTime);
+            node.put("message", message);
+            return node;
+        }
+
+        /**
+         * Appends this commit in the format expected by {@link hudson.plugins.git.GitSCM} changelogs.
+         *
+         * @param log the changelog.
+         * @param iso the format to use for timestamps.
+         */
+        void appendChangeLog(@NonNull StringBuilder log, @NonNull FastDateFormat iso) {
+            log.append("commit ").append(hash).append('\n');
+            log.append("tree ").append(tree).append('\n');
+            log.append("parent");
+            for (String parent : parents) {
+                log.append(' ').append(parent);
+            }
+            log.append('\n');
+            log.append("author ").append(author).append(' ').append(iso.format(authorTime)).append('\n');
+            log.append("committer ").append(committer).append(' ').append(iso.format(committerTime)).append('\n');
+            log.append('\n');
+            log.append(message);
+            log.append('\n');
+        }
+
+        /**
+         * Gets the commit hash.
+         *
+         * @return the commit hash.
+         */
+        @NonNull
+        String getHash() {
+            return hash;
+        }
+
+        /**
+         * Gets the parent commit hashes.
+         *
+         * @return the parent commit hashes.
+         */
+        @NonNull
+        List<String> getParents() {
+            return parents;
+        }
+
+        /**
+         * Gets the committer timestamp.
+         *
+         * @return the committer timestamp.
+         */
+        long getCommitterTime() {
+            return committerTime;
+        }
+    }
+}
@@ -24,7 +24,6 @@ import com.ning.http.client.RequestBuilder;
 import com.ning.http.client.Response;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
-import hudson.Util;
 import hudson.model.AsyncPeriodicWork;
 import hudson.model.TaskListener;
 import hudson.plugins.git.GitSCM;
@@ -192,11 +191,13 @@ public class GitPubSubPoll extends AsyncPeriodicWork {
         @Override
         public Response onCompleted(Response response) throws Exception {
             LOGGER.log(Level.FINE, "Connection closed");
+            IndexWatermark.onStreamBroken();
             return super.onCompleted(response);
         }
 
         @Override
         public void onThrowable(Throwable t) {
+            IndexWatermark.onStreamBroken();
             if (t instanceof TimeoutException) {
                 LOGGER.log(Level.FINE, "Connection timeout", t);
             } else {
@@ -216,6 +217,7 @@ public class GitPubSubPoll extends AsyncPeriodicWork {
         @Override
         public synchronized STATE onBodyPartReceived(HttpResponseBodyPart content) throws Exception {
             lastTime = System.currentTimeMillis();
+            IndexWatermark.onStreamData();
             byte[] body = content.getBodyPartBytes();
             if (body.length < 2 || body[body.length - 1] != 0x0a) {
                 LOGGER.log(Level.FINE, "Stashing large message");
@@ -261,6 +263,14 @@ public class GitPubSubPoll extends AsyncPeriodicWork {
                         lastTS = fieldValue.asLong();
                     } else if ("push".equals(fieldName)) {
                         pushEvents.incrementAndGet();
+                        if ("git".equals(fieldValue.get("repository").textValue()) && fieldValue.has("project")) {
+                            try {
+                                // tag pushes count too, as the index lists tags
+                                IndexWatermark.onPush(Push.remoteOf(fieldValue));
+                            } catch (RuntimeException e) {
+                                LOGGER.log(Level.WARNING, "Could not record push watermark", e);
+                            }
+                        }
                         if ("git".equals(fieldValue.get("repository").textValue())
                                 && fieldValue.has("project")
                                 && !"tag".equals(fieldValue.get("type").textValue())
@@ -277,7 +287,24 @@ public class GitPubSubPoll extends AsyncPeriodicWork {
                                 // unknown, so ignore
                                 continue;
                             }
-                            SCMHeadEvent.fireNow(new Push(type, fieldValue, GITPUBSUB_URL));
+                            Push push = new Push(type, fieldValue, GITPUBSUB_URL);
+                            String hash = type == REMOVED ? null : fieldValue.path("to").asText(null);
+                            // without the new hash we cannot tell an update from a deletion, so leave the state alone
+                            boolean known = type == REMOVED || hash != null;
+                            try {
+                                // record the new state before any listener gets to ask for it, but never at the
+                                // expense of the event itself
+                                if (known) {
+                                    RefState.onPush(push.getRemote(), fieldValue.get("ref").asText(), hash);
+                                }
+                                PushActivity.onPush(push.getRemote());
+                            } catch (RuntimeException e) {
+                                LOGGER.log(Level.WARNING, "Could not record push state", e);
+                            }
+                            SCMHeadEvent.fireNow(push);
+                            if (known) {
+                                PushPrefetcher.onPush(push.getRemote(), fieldValue.get("ref").asText(), hash);
+                            }
                         }
                     }
                 } catch (Exception e) {
@@ -296,6 +323,7 @@ public class GitPubSubPoll extends AsyncPeriodicWork {
 
     private static class Push extends SCMHeadEvent<JsonNode> {
         private final URIish remoteUri;
+        private final String remote;
         private String server;
 
         public Push(Type type, JsonNode payload, String origin) {
@@ -303,20 +331,38 @@ public class GitPubSubPoll extends AsyncPeriodicWork {
             server = "https://"
                     + getPayload().get("server").asText() +
                     ".apache.org/repos/asf";
+            remote = remoteOf(payload);
             // pre-parse the remote uri
             URIish event;
             try {
-                event = new URIish(
-                        server + "/"
-                                + Util.rawEncode(payload.get("project").asText())
-                                + ".git"
-                );
+                event = new URIish(remote);
             } catch (URISyntaxException e) {
                 event = null;
             }
             this.remoteUri = event;
         }
 
+        /**
+         * Gets the remote that a push event payload refers to.
+         *
+         * @param payload the push event payload.
+         * @return the remote, in the form used by {@link ASFGitSCMSourceBuilder}.
+         */
+        static String remoteOf(JsonNode payload) {
+            return ASFGitSCMSourceBuilder.remoteOf(
+                    "https://" + payload.get("server").asText() + ".apache.org/repos/asf",
+                    payload.get("project").asText());
+        }
+
+        /**
+         * Gets the remote that was pushed to, in the form used by {@link ASFGitSCMSourceBuilder}.
+         *
+         * @return the remote.
+         */
+        public String getRemote() {
+            return remote;
+        }
+
         @Override
         public boolean isMatch(@NonNull SCMNavigator navigator) {
             return navigator instanceof ASFGitSCMNavigator
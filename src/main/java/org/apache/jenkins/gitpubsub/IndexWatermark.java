@@ -0,0 +1,257 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import jenkins.plugins.git.GitSCMTelescope;
+import jenkins.scm.api.SCMRevision;
+
+/**
+ * Watermarks that let branch indexing skip remotes that nobody has pushed to since they were last indexed. Every
+ * push, whether to a branch or to a tag, is reported by the GitPubSub stream, so as long as the stream has been
+ * connected without interruption since an index of a remote started and no push to the remote has been seen since,
+ * the revisions listed by that index are still correct and can be returned again without asking GitWeb.
+ * <p>
+ * To fail safe, a listing is only reused if it was taken at least {@link #GRACE_MILLIS} after the last push (GitWeb
+ * may lag the push event), for at most {@link #MAX_AGE_MILLIS}, and only for remotes whose canonical form is known.
+ */
+final class IndexWatermark {
+
+    /**
+     * Whether indexing of remotes without pushes may be skipped.
+     */
+    private static /*mostly final*/ boolean ENABLED =
+            !Boolean.getBoolean(IndexWatermark.class.getName() + ".DISABLED");
+    /**
+     * How long the stream may be silent before it is no longer trusted. GitPubSub sends a keep alive every few seconds.
+     */
+    private static /*mostly final*/ long SILENCE_MILLIS =
+            Long.getLong(IndexWatermark.class.getName() + ".SILENCE_MILLIS", TimeUnit.MINUTES.toMillis(1));
+    /**
+     * How long after a push a listing must have been started to be reused, as GitWeb may not show the push at once.
+     */
+    private static /*mostly final*/ long GRACE_MILLIS =
+            Long.getLong(IndexWatermark.class.getName() + ".GRACE_MILLIS", TimeUnit.MINUTES.toMillis(1));
+    /**
+     * The maximum age of a reused listing, after which the remote is indexed for real regardless.
+     */
+    private static /*mostly final*/ long MAX_AGE_MILLIS =
+            Long.getLong(IndexWatermark.class.getName() + ".MAX_AGE_MILLIS", TimeUnit.HOURS.toMillis(1));
+    /**
+     * When the stream last became healthy, or {@code 0} if it is not connected.
+     */
+    private static volatile long healthySince;
+    /**
+     * When the stream last delivered anything.
+     */
+    private static volatile long lastHeard;
+    /**
+     * When each remote was last pushed to, keyed by canonical remote. There is one entry per pushed repository.
+     */
+    private static final ConcurrentMap<String, Long> LAST_PUSH = new ConcurrentHashMap<>();
+    /**
+     * The revisions listed by the last index of each remote, keyed by canonical remote.
+     */
+    private static final Cache<String, Indexed> INDEXED = CacheBuilder.newBuilder()
+            .maximumSize(4096)
+            .expireAfterWrite(Math.max(0L, MAX_AGE_MILLIS), TimeUnit.MILLISECONDS)
+            .build();
+
+    /**
+     * Utility class.
+     */
+    private IndexWatermark() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Records that the stream delivered data.
+     */
+    static void onStreamData() {
+        long now = System.currentTimeMillis();
+        if (healthySince == 0L || now - lastHeard > SILENCE_MILLIS) {
+            // either we were disconnected or we may have missed events during the silence
+            healthySince = now;
+        }
+        lastHeard = now;
+    }
+
+    /**
+     * Records that the stream was disconnected, events may have been missed until it reconnects.
+     */
+    static void onStreamBroken() {
+        healthySince = 0L;
+    }
+
+    /**
+     * Records a push to a branch or tag of a remote.
+     *
+     * @param remote the remote.
+     */
+    static void onPush(@NonNull String remote) {
+        String key = canonical(remote);
+        if (key != null) {
+            LAST_PUSH.put(key, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Gets the revisions listed by the last index of a remote if they are known to still be correct.
+     *
+     * @param remote         the remote.
+     * @param referenceTypes the types of refs being indexed.
+     * @return the revisions listed by the last index or {@code null} if the remote needs to be indexed.
+     */
+    @CheckForNull
+    static Iterable<SCMRevision> unchanged(@NonNull String remote,
+                                           @NonNull Set<GitSCMTelescope.ReferenceType> referenceTypes) {
+        String key = canonical(remote);
+        Indexed indexed = key == null ? null : INDEXED.getIfPresent(key);
+        if (!ENABLED || indexed == null || !indexed.referenceTypes.equals(referenceTypes)) {
+            return null;
+        }
+        if (isStale(key, indexed)) {
+            INDEXED.invalidate(key);
+            return null;
+        }
+        return indexed.revisions;
+    }
+
+    /**
+     * Checks if the revisions listed by the last index of a remote are known to still be correct, without discarding
+     * them if they are not. This is for callers that only want to know whether an index will need to fetch anything.
+     *
+     * @param remote         the remote.
+     * @param referenceTypes the types of refs being indexed.
+     * @return {@code true} if {@link #unchanged(String, Set)} would return the revisions listed by the last index.
+     */
+    static boolean isUnchanged(@NonNull String remote, @NonNull Set<GitSCMTelescope.ReferenceType> referenceTypes) {
+        String key = canonical(remote);
+        Indexed indexed = key == null ? null : INDEXED.getIfPresent(key);
+        return ENABLED && indexed != null && indexed.referenceTypes.equals(referenceTypes) && !isStale(key, indexed);
+    }
+
+    /**
+     * Checks if the revisions listed by an index may have been changed by a push since.
+     *
+     * @param key     the canonical remote.
+     * @param indexed the revisions listed by the index.
+     * @return {@code true} if the revisions can no longer be trusted.
+     */
+    private static boolean isStale(@NonNull String key, @NonNull Indexed indexed) {
+        long since = healthySince;
+        Long lastPush = LAST_PUSH.get(key);
+        return since == 0L || since > indexed.started
+                || System.currentTimeMillis() - lastHeard > SILENCE_MILLIS
+                || lastPush != null && indexed.started - lastPush < GRACE_MILLIS;
+    }
+
+    /**
+     * Records the revisions listed by an index of a remote. The revisions must all be resolved, an immutable copy is
+     * kept so that the listing can be shared by later indexes.
+     *
+     * @param remote         the remote.
+     * @param referenceTypes the types of refs that were indexed.
+     * @param started        when the index started, as returned by {@link System#currentTimeMillis()}.
+     * @param revisions      the resolved revisions.
+     */
+    static void indexed(@NonNull String remote, @NonNull Set<GitSCMTelescope.ReferenceType> referenceTypes,
+                        long started, @NonNull List<SCMRevision> revisions) {
+        String key = canonical(remote);
+        if (ENABLED && key != null) {
+            INDEXED.put(key, new Indexed(referenceTypes, started,
+                    Collections.unmodifiableList(new ArrayList<>(revisions))));
+        }
+    }
+
+    /**
+     * Gets the canonical form of a remote, so that push events and index requests for the same repository match
+     * however the remote is written: the scheme and host are lower cased, the path is decoded, trailing slashes are
+     * removed and the {@code .git} suffix is added.
+     *
+     * @param remote the remote.
+     * @return the canonical form or {@code null} if the remote cannot be parsed, in which case it is never skipped.
+     */
+    @CheckForNull
+    static String canonical(@NonNull String remote) {
+        URI uri;
+        try {
+            uri = new URI(remote);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        String path = uri.getPath();
+        if (uri.getScheme() == null || uri.getHost() == null || path == null || uri.getQuery() != null) {
+            return null;
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (path.isEmpty()) {
+            return null;
+        }
+        if (!path.endsWith(".git")) {
+            path = path + ".git";
+        }
+        return uri.getScheme().toLowerCase(Locale.ENGLISH) + "://" + uri.getHost().toLowerCase(Locale.ENGLISH)
+                + (uri.getPort() == -1 ? "" : ":" + uri.getPort()) + path;
+    }
+
+    /**
+     * The revisions listed by an index.
+     */
+    private static final class Indexed {
+        /**
+         * The types of refs that were indexed.
+         */
+        private final Set<GitSCMTelescope.ReferenceType> referenceTypes;
+        /**
+         * When the index started.
+         */
+        private final long started;
+        /**
+         * The revisions.
+         */
+        private final List<SCMRevision> revisions;
+
+        /**
+         * Constructor.
+         *
+         * @param referenceTypes the types of refs that were indexed.
+         * @param started        when the index started.
+         * @param revisions      the revisions.
+         */
+        Indexed(Set<GitSCMTelescope.ReferenceType> referenceTypes, long started, List<SCMRevision> revisions) {
+            this.referenceTypes = referenceTypes.isEmpty()
+                    ? EnumSet.noneOf(GitSCMTelescope.ReferenceType.class)
+                    : EnumSet.copyOf(referenceTypes);
+            this.started = started;
+            this.revisions = revisions;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * A small table of the push activity of each remote, as observed by {@link GitPubSubPoll}: when the remote was last
+ * pushed to and how many pushes we have seen. The table is persisted in
+ * {@code JENKINS_HOME/caches/asf-gitpubsub-activity} so that after a restart the navigator can scan the busiest
+ * repositories first. Recording a push only touches memory, the table is written out by {@link Saver} and on
+ * shutdown.
+ */
+final class PushActivity {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(PushActivity.class.getName());
+    /**
+     * The maximum number of remotes to track, the least recently pushed remotes are dropped first.
+     */
+    private static /*mostly final*/ int MAX_ENTRIES =
+            Integer.getInteger(PushActivity.class.getName() + ".MAX_ENTRIES", 4096);
+    /**
+     * How often the table is saved if it has changed.
+     */
+    private static /*mostly final*/ long SAVE_INTERVAL_MILLIS =
+            Long.getLong(PushActivity.class.getName() + ".SAVE_INTERVAL_MILLIS", TimeUnit.MINUTES.toMillis(1));
+    /**
+     * Our object mapper.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /**
+     * The activity keyed by remote, guarded by itself.
+     */
+    private static final Map<String, Activity> TABLE = new HashMap<>();
+    /**
+     * Whether the table has been loaded from disk, guarded by {@link #TABLE}.
+     */
+    private static boolean loaded;
+    /**
+     * Whether the table has changed since it was last saved, guarded by {@link #TABLE}.
+     */
+    private static boolean dirty;
+
+    /**
+     * Utility class.
+     */
+    private PushActivity() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Records a push to the supplied remote.
+     *
+     * @param remote the remote.
+     */
+    static void onPush(@NonNull String remote) {
+        long now = System.currentTimeMillis();
+        synchronized (TABLE) {
+            // no load here, this runs on the event stream thread, the saved table is merged in when first read
+            Activity previous = TABLE.get(remote);
+            TABLE.put(remote, new Activity(now, previous == null ? 1L : previous.pushes + 1L));
+            if (TABLE.size() > Math.max(1, MAX_ENTRIES)) {
+                TABLE.remove(Collections.min(TABLE.entrySet(), new Comparator<Map.Entry<String, Activity>>() {
+                    @Override
+                    public int compare(Map.Entry<String, Activity> o1, Map.Entry<String, Activity> o2) {
+                        return Long.compare(o1.getValue().lastPush, o2.getValue().lastPush);
+                    }
+                }).getKey());
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Gets when the supplied remote was last pushed to.
+     *
+     * @param remote the remote.
+     * @return the time of the last push in milliseconds since the epoch, or {@code -1} if no push has been seen.
+     */
+    static long lastPush(@NonNull String remote) {
+        Activity activity = get(remote);
+        return activity == null ? -1L : activity.lastPush;
+    }
+
+    /**
+     * Gets the activity of the supplied remote.
+     *
+     * @param remote the remote.
+     * @return the activity or {@code null} if no push has been seen.
+     */
+    @CheckForNull
+    static Activity get(@NonNull String remote) {
+        synchronized (TABLE) {
+            load();
+            return TABLE.get(remote);
+        }
+    }
+
+    /**
+     * Orders the supplied repositories by their push activity, busiest first, dropping the repositories that have no
+     * recorded activity.
+     *
+     * @param server the server.
+     * @param repos  the repository names.
+     * @param limit  the maximum number of repositories to return.
+     * @return the names of the most active repositories, busiest first.
+     */
+    @NonNull
+    static List<String> mostActive(@NonNull String server, @NonNull Iterable<String> repos, int limit) {
+        final long now = System.currentTimeMillis();
+        final Map<String, Double> scores = new HashMap<>();
+        for (String repo : repos) {
+            Activity activity = get(ASFGitSCMSourceBuilder.remoteOf(server, repo));
+            if (activity != null) {
+                scores.put(repo, activity.score(now));
+            }
+        }
+        List<String> result = new ArrayList<>(scores.keySet());
+        Collections.sort(result, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return Double.compare(scores.get(o2), scores.get(o1));
+            }
+        });
+        return result.size() > limit ? new ArrayList<>(result.subList(0, Math.max(0, limit))) : result;
+    }
+
+    /**
+     * Saves the table if it has changed since it was last saved.
+     */
+    static void flush() {
+        ObjectNode json;
+        synchronized (TABLE) {
+            load();
+            if (!loaded || !dirty) {
+                // never replace the saved table with a partial one
+                return;
+            }
+            json = toJson();
+            dirty = false;
+        }
+        if (!save(json)) {
+            synchronized (TABLE) {
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Loads the table from disk once Jenkins is available, merging in any pushes recorded before. Must be called
+     * holding the lock on {@link #TABLE}.
+     */
+    private static void load() {
+        if (loaded) {
+            return;
+        }
+        File file = file();
+        if (file == null) {
+            // too early, try again on the next use
+            return;
+        }
+        loaded = true;
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            JsonNode json = MAPPER.readTree(file);
+            for (Iterator<Map.Entry<String, JsonNode>> it = json.fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> entry = it.next();
+                long last = entry.getValue().path("last").asLong(-1L);
+                long count = entry.getValue().path("count").asLong(0L);
+                Activity recent = TABLE.get(entry.getKey());
+                TABLE.put(entry.getKey(), recent == null
+                        ? new Activity(last, count)
+                        : new Activity(Math.max(last, recent.lastPush), count + recent.pushes));
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read push activity " + file, e);
+        }
+    }
+
+    /**
+     * Converts the table to JSON. Must be called holding the lock on {@link #TABLE}.
+     *
+     * @return the JSON form of the table.
+     */
+    @NonNull
+    private static ObjectNode toJson() {
+        ObjectNode json = MAPPER.createObjectNode();
+        for (Map.Entry<String, Activity> entry : TABLE.entrySet()) {
+            ObjectNode activity = json.putObject(entry.getKey());
+            activity.put("last", entry.getValue().lastPush);
+            activity.put("count", entry.getValue().pushes);
+        }
+        return json;
+    }
+
+    /**
+     * Saves the table to disk.
+     *
+     * @param json the JSON form of the table.
+     * @return {@code true} if the table was saved.
+     */
+    private static boolean save(@NonNull ObjectNode json) {
+        File file = file();
+        if (file == null) {
+            return false;
+        }
+        try {
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Could not create " + file.getParentFile());
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            MAPPER.writeValue(tmp, json);
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Could not replace " + file);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save push activity " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Gets the file that holds the table.
+     *
+     * @return the file or {@code null} if the table is only held in memory.
+     */
+    @CheckForNull
+    private static File file() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return new File(new File(jenkins.getRootDir(), "caches/asf-gitpubsub-activity"), "activity.json");
+    }
+
+    /**
+     * Saves the table every {@link #SAVE_INTERVAL_MILLIS} if it has changed, and once more on shutdown.
+     */
+    @Extension
+    public static class Saver extends AsyncPeriodicWork {
+
+        /**
+         * Constructor.
+         */
+        public Saver() {
+            super("ASF push activity save");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getRecurrencePeriod() {
+            return Math.max(TimeUnit.SECONDS.toMillis(1), SAVE_INTERVAL_MILLIS);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void execute(TaskListener listener) {
+            flush();
+        }
+
+        /**
+         * Saves the pushes recorded since the last periodic save.
+         */
+        @Terminator
+        public static void onShutdown() {
+            flush();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Level getNormalLoggingLevel() {
+            return Level.FINE;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Level getSlowLoggingLevel() {
+            return Level.FINE;
+        }
+    }
+
+    /**
+     * The push activity of a remote.
+     */
+    static final class Activity {
+        /**
+         * When the remote was last pushed to, in milliseconds since the epoch.
+         */
+        private final long lastPush;
+        /**
+         * The number of pushes seen.
+         */
+        private final long pushes;
+
+        /**
+         * Constructor.
+         *
+         * @param lastPush when the remote was last pushed to, in milliseconds since the epoch.
+         * @param pushes   the number of pushes seen.
+         */
+        Activity(long lastPush, long pushes) {
+            this.lastPush = lastPush;
+            this.pushes = pushes;
+        }
+
+        /**
+         * Gets when the remote was last pushed to.
+         *
+         * @return when the remote was last pushed to, in milliseconds since the epoch.
+         */
+        long getLastPush() {
+            return lastPush;
+        }
+
+        /**
+         * Gets the number of pushes seen.
+         *
+         * @return the number of pushes seen.
+         */
+        long getPushes() {
+            return pushes;
+        }
+
+        /**
+         * Scores the activity, the push count decaying with the number of days since the last push.
+         *
+         * @param now the current time in milliseconds since the epoch.
+         * @return the score, higher is busier.
+         */
+        double score(long now) {
+            return pushes / (1.0 + Math.max(0L, now - lastPush) / (double) TimeUnit.DAYS.toMillis(1));
+        }
+    }
+}
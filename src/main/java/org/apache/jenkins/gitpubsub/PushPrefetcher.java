@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.plugins.git.AbstractGitSCMSource;
+import jenkins.scm.api.SCMFile;
+import jenkins.scm.api.SCMHead;
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * Warms the shared caches for the new revision of a pushed branch: the commit page, the root tree listing and the
+ * marker files (such as the {@code Jenkinsfile}) that branch projects read as soon as they see the push. The work is
+ * done in the background on a small pool of low priority threads; when the pool falls behind the oldest pushes are
+ * dropped as they are the least likely to still be of interest.
+ */
+final class PushPrefetcher {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(PushPrefetcher.class.getName());
+    /**
+     * A mode switch, if {@code true} then push events will trigger a prefetch of the pushed revision.
+     */
+    private static /*mostly final*/ boolean ENABLED = Boolean.getBoolean(PushPrefetcher.class.getName() + ".ENABLED");
+    /**
+     * The comma separated paths of the marker files to prefetch.
+     */
+    private static /*mostly final*/ String MARKER_FILES =
+            System.getProperty(PushPrefetcher.class.getName() + ".MARKER_FILES", "Jenkinsfile");
+    /**
+     * The maximum number of pushes that will be prefetched concurrently.
+     */
+    private static /*mostly final*/ int CONCURRENCY =
+            Integer.getInteger(PushPrefetcher.class.getName() + ".CONCURRENCY", 2);
+    /**
+     * The maximum number of pushes waiting to be prefetched.
+     */
+    private static /*mostly final*/ int QUEUE_SIZE =
+            Integer.getInteger(PushPrefetcher.class.getName() + ".QUEUE_SIZE", 64);
+    /**
+     * The executor, created on first use.
+     */
+    @CheckForNull
+    private static ExecutorService executor;
+
+    /**
+     * Utility class.
+     */
+    private PushPrefetcher() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Records a push event, scheduling a prefetch of the pushed revision if enabled.
+     *
+     * @param remote the remote.
+     * @param ref    the ref that was pushed.
+     * @param hash   the new hash of the ref or {@code null} if the ref was deleted.
+     */
+    static void onPush(@NonNull final String remote, @NonNull final String ref, @CheckForNull final String hash) {
+        if (!ENABLED || hash == null || !ref.startsWith(Constants.R_HEADS)) {
+            return;
+        }
+        executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefetch(remote, ref, hash, StringUtils.split(StringUtils.defaultString(MARKER_FILES), ','));
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Could not prefetch " + ref + " of " + remote + " at " + hash, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Prefetches a pushed revision.
+     *
+     * @param remote  the remote.
+     * @param ref     the branch ref that was pushed.
+     * @param hash    the new hash of the branch.
+     * @param markers the paths of the marker files to prefetch.
+     * @throws IOException          if the revision could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the revision.
+     */
+    static void prefetch(@NonNull String remote, @NonNull String ref, @NonNull String hash, @NonNull String... markers)
+            throws IOException, InterruptedException {
+        SCMHead head = new SCMHead(ref.substring(Constants.R_HEADS.length()));
+        long start = System.nanoTime();
+        try (ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(remote, head,
+                new AbstractGitSCMSource.SCMRevisionImpl(head, hash))) {
+            fs.lastModified();
+            fs.listTree("");
+            for (String marker : markers) {
+                marker = StringUtils.strip(marker.trim(), "/");
+                if (marker.isEmpty()) {
+                    continue;
+                }
+                SCMFile file = fs.getRoot().child(marker);
+                if (file.isFile()) {
+                    try (InputStream in = file.content()) {
+                        byte[] buffer = new byte[8192];
+                        while (in.read(buffer) != -1) {
+                            // drain into the blob cache
+                        }
+                    }
+                }
+            }
+        }
+        LOGGER.log(Level.FINE, "Prefetched {0} of {1} at {2} in {3}ms", new Object[]{
+                ref, remote, hash, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        });
+    }
+
+    /**
+     * Gets the executor, creating it on first use.
+     *
+     * @return the executor.
+     */
+    @NonNull
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            final ThreadFactory factory =
+                    new NamingThreadFactory(new DaemonThreadFactory(), PushPrefetcher.class.getName());
+            int threads = Math.max(1, CONCURRENCY);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, QUEUE_SIZE)),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = factory.newThread(r);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.DiscardOldestPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+}
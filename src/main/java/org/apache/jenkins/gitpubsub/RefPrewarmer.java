@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.plugins.git.GitSCMTelescope;
+import jenkins.scm.api.SCMRevision;
+
+/**
+ * Warms the shared caches with the heads and tags of the repositories that an {@link ASFGitSCMNavigator} scan
+ * proposes, so that when the multibranch projects of those repositories are indexed right after the scan the ref
+ * listings, commit pages and tag pages have already been resolved. The work is done in the background on a small pool
+ * of low priority threads; when the pool falls behind further repositories are not warmed and will be fetched by their
+ * index as before.
+ */
+final class RefPrewarmer {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(RefPrewarmer.class.getName());
+    /**
+     * A mode switch, if {@code true} then the repositories proposed by a scan will be warmed.
+     */
+    private static /*mostly final*/ boolean ENABLED = Boolean.getBoolean(RefPrewarmer.class.getName() + ".ENABLED");
+    /**
+     * The maximum number of repositories that will be warmed concurrently.
+     */
+    private static /*mostly final*/ int CONCURRENCY =
+            Integer.getInteger(RefPrewarmer.class.getName() + ".CONCURRENCY", 2);
+    /**
+     * The maximum number of repositories waiting to be warmed.
+     */
+    private static /*mostly final*/ int QUEUE_SIZE =
+            Integer.getInteger(RefPrewarmer.class.getName() + ".QUEUE_SIZE", 256);
+    /**
+     * The types of refs to warm.
+     */
+    private static final Set<GitSCMTelescope.ReferenceType> REFERENCE_TYPES =
+            EnumSet.allOf(GitSCMTelescope.ReferenceType.class);
+    /**
+     * The executor, created on first use.
+     */
+    @CheckForNull
+    private static ExecutorService executor;
+
+    /**
+     * Utility class.
+     */
+    private RefPrewarmer() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Records that a scan proposed a repository, scheduling a warm up of its refs if enabled.
+     *
+     * @param remote    the remote.
+     * @param smartHttp whether the source uses the Git smart HTTP ref advertisement.
+     */
+    static void onProposed(@NonNull final String remote, final boolean smartHttp) {
+        if (!ENABLED || IndexWatermark.isUnchanged(remote, REFERENCE_TYPES)) {
+            // nothing has been pushed since the last index, so the index will not need to fetch anything
+            return;
+        }
+        executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RefSnapshot.useSmartHttp(remote, smartHttp);
+                    prewarm(remote);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.FINE, "Could not prewarm refs of " + remote, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Resolves every head and tag of a remote into the shared caches.
+     *
+     * @param remote the remote.
+     * @throws IOException          if the refs could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the refs.
+     */
+    static void prewarm(@NonNull String remote) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        int count = 0;
+        for (SCMRevision revision : new ASFGitSCMFileSystem.TelescopeImpl().getRevisions(remote, null,
+                REFERENCE_TYPES)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (revision != null) {
+                count++;
+            }
+        }
+        LOGGER.log(Level.FINE, "Prewarmed {0} refs of {1} in {2}ms", new Object[]{
+                count, remote, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        });
+    }
+
+    /**
+     * Gets the executor, creating it on first use.
+     *
+     * @return the executor.
+     */
+    @NonNull
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            final ThreadFactory factory =
+                    new NamingThreadFactory(new DaemonThreadFactory(), RefPrewarmer.class.getName());
+            int threads = Math.max(1, CONCURRENCY);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, QUEUE_SIZE)),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = factory.newThread(r);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.DiscardPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import org.eclipse.jgit.lib.Constants;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import static org.apache.jenkins.gitpubsub.ASFGitSCMFileSystem.URL_EXTRACT_H;
+import static org.apache.jenkins.gitpubsub.ASFGitSCMFileSystem.buildTemplateWithRemote;
+import static org.apache.jenkins.gitpubsub.ASFGitSCMFileSystem.fetchDocument;
+
+/**
+ * An immutable snapshot of the heads and tags of a remote, captured with one request per listing and shared by all
+ * the {@link ASFGitSCMFileSystem.TelescopeImpl} calls against the same remote for a short period.
+ */
+final class RefSnapshot {
+
+    /**
+     * How long a snapshot can be reused before the listings are fetched again.
+     */
+    private static /*mostly final*/ long TTL_MILLIS =
+            Long.getLong(RefSnapshot.class.getName() + ".TTL_MILLIS", 60000L);
+    /**
+     * The snapshots by remote.
+     */
+    private static final Cache<String, RefSnapshot> SNAPSHOTS = CacheBuilder.newBuilder()
+            .maximumSize(1024)
+            .expireAfterWrite(Math.max(0L, TTL_MILLIS), TimeUnit.MILLISECONDS)
+            .build();
+    /**
+     * Use the Git smart HTTP ref advertisement for all remotes rather than scraping GitWeb.
+     */
+    private static /*mostly final*/ boolean SMART_HTTP =
+            Boolean.getBoolean(RefSnapshot.class.getName() + ".SMART_HTTP");
+    /**
+     * Whether each remote uses the Git smart HTTP ref advertisement, as recorded from the
+     * {@link SmartHttpRefsSCMSourceTrait} of its sources when they are created, loaded or reconfigured.
+     */
+    private static final Cache<String, Boolean> SMART_HTTP_REMOTES = CacheBuilder.newBuilder()
+            .maximumSize(8192)
+            .build();
+    /**
+     * The branch hashes keyed by branch name in listing order, the hashes are {@code null} if the listing does not
+     * provide them.
+     */
+    @NonNull
+    private final Map<String, String> heads;
+    /**
+     * The name of the branch that {@code HEAD} points to or {@code null} if unknown.
+     */
+    @CheckForNull
+    private final String currentHead;
+    /**
+     * The tags keyed by tag name in listing order.
+     */
+    @NonNull
+    private final Map<String, Tag> tags;
+
+    /**
+     * Constructor.
+     *
+     * @param heads       the branch hashes keyed by branch name.
+     * @param currentHead the name of the branch that {@code HEAD} points to.
+     * @param tags        the tags.
+     */
+    RefSnapshot(@NonNull Map<String, String> heads, @CheckForNull String currentHead,
+                @NonNull Map<String, Tag> tags) {
+        this.heads = Collections.unmodifiableMap(new LinkedHashMap<>(heads));
+        this.currentHead = currentHead;
+        this.tags = Collections.unmodifiableMap(new LinkedHashMap<>(tags));
+    }
+
+    /**
+     * Gets the current snapshot for the supplied remote, fetching the listings if there is no current snapshot.
+     * Concurrent callers for the same remote share a single fetch.
+     *
+     * @param remote the remote.
+     * @return the snapshot.
+     * @throws IOException          if the listings could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the listings.
+     */
+    @NonNull
+    static RefSnapshot of(@NonNull final String remote) throws IOException, InterruptedException {
+        try {
+            return SNAPSHOTS.get(remote, new Callable<RefSnapshot>() {
+                @Override
+                public RefSnapshot call() throws Exception {
+                    return fetch(remote);
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new IOException("Could not list refs of " + remote, cause);
+        }
+    }
+
+    /**
+     * Gets the current snapshot for the supplied remote without fetching.
+     *
+     * @param remote the remote.
+     * @return the snapshot or {@code null} if there is no current snapshot.
+     */
+    @CheckForNull
+    static RefSnapshot peek(@NonNull String remote) {
+        return SNAPSHOTS.getIfPresent(remote);
+    }
+
+    /**
+     * Gets the current snapshot for the supplied remote if it can be had cheaply, i.e. if there is a current snapshot
+     * or the remote uses the Git smart HTTP ref advertisement where a single request lists all refs.
+     *
+     * @param remote the remote.
+     * @return the snapshot or {@code null} if there is no current snapshot and creating one would be expensive.
+     * @throws IOException          if the listings could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the listings.
+     */
+    @CheckForNull
+    static RefSnapshot lookup(@NonNull String remote) throws IOException, InterruptedException {
+        return isSmartHttp(remote) ? of(remote) : peek(remote);
+    }
+
+    /**
+     * Records whether the sources of the supplied remote use the Git smart HTTP ref advertisement.
+     *
+     * @param remote    the remote.
+     * @param smartHttp {@code true} to use the Git smart HTTP ref advertisement, {@code false} to scrape GitWeb.
+     */
+    static void useSmartHttp(@NonNull String remote, boolean smartHttp) {
+        Boolean previous = SMART_HTTP_REMOTES.asMap().put(remote, smartHttp);
+        if (previous != null && previous != smartHttp) {
+            invalidate(remote);
+        }
+    }
+
+    /**
+     * Checks whether the supplied remote uses the Git smart HTTP ref advertisement.
+     *
+     * @param remote the remote.
+     * @return {@code true} if the remote uses the Git smart HTTP ref advertisement.
+     */
+    static boolean isSmartHttp(@NonNull String remote) {
+        if (SMART_HTTP) {
+            return true;
+        }
+        Boolean smartHttp = SMART_HTTP_REMOTES.getIfPresent(remote);
+        return smartHttp != null && smartHttp;
+    }
+
+    /**
+     * Discards any snapshot held for the supplied remote.
+     *
+     * @param remote the remote.
+     */
+    static void invalidate(@NonNull String remote) {
+        SNAPSHOTS.invalidate(remote);
+    }
+
+    /**
+     * Fetches the heads and tags of the supplied remote using the selected backend.
+     *
+     * @param remote the remote.
+     * @return the snapshot.
+     * @throws IOException          if the listings could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the listings.
+     */
+    @NonNull
+    static RefSnapshot fetch(@NonNull String remote) throws IOException, InterruptedException {
+        if (isSmartHttp(remote)) {
+            return SmartHttpRefListing.fetch(remote, Constants.HEAD, Constants.R_HEADS, Constants.R_TAGS);
+        }
+        return fetchGitWeb(remote);
+    }
+
+    /**
+     * Fetches the heads and tags listings of the supplied remote from GitWeb.
+     *
+     * @param remote the remote.
+     * @return the snapshot.
+     * @throws IOException          if the listings could not be retrieved.
+     * @throws InterruptedException if interrupted while retrieving the listings.
+     */
+    @NonNull
+    static RefSnapshot fetchGitWeb(@NonNull String remote) throws IOException, InterruptedException {
+        Document doc = fetchDocument(buildTemplateWithRemote("{+server}{?p}{;a}", remote)
+                .set("a", "heads")
+                .expand());
+        Map<String, String> heads = new LinkedHashMap<>();
+        for (Element element : doc.select("table.heads tr td a.name")) {
+            // GitWeb does not render the branch hashes in the heads listing
+            heads.put(element.text(), null);
+        }
+        Elements current = doc.select("table.heads tr td.current_head a.name");
+        String currentHead = current.isEmpty() ? null : current.get(0).text();
+        doc = fetchDocument(buildTemplateWithRemote("{+server}{?p}{;a}", remote)
+                .set("a", "tags")
+                .expand());
+        Map<String, Tag> tags = new LinkedHashMap<>();
+        for (Element element : doc.select("table.tags tr td a.name")) {
+            Matcher commit = URL_EXTRACT_H.matcher(element.attr("href"));
+            String objectHash = null;
+            Elements links = element.parent().parent().select("td.selflink a");
+            if (!links.isEmpty()) {
+                // annotated tag
+                Matcher object = URL_EXTRACT_H.matcher(links.get(0).attr("href"));
+                if (object.matches()) {
+                    objectHash = object.group(1);
+                }
+            }
+            tags.put(element.text(), new Tag(commit.matches() ? commit.group(1) : null, objectHash,
+                    !links.isEmpty()));
+        }
+        return new RefSnapshot(heads, currentHead, tags);
+    }
+
+    /**
+     * Gets the branch names.
+     *
+     * @return the branch names.
+     */
+    @NonNull
+    Set<String> getHeads() {
+        return heads.keySet();
+    }
+
+    /**
+     * Gets the hash of the named branch.
+     *
+     * @param name the branch name (without the {@code refs/heads/} prefix).
+     * @return the hash of the branch or {@code null} if the snapshot does not contain the branch or the listing does
+     * not provide branch hashes.
+     */
+    @CheckForNull
+    String getHeadHash(@NonNull String name) {
+        return heads.get(name);
+    }
+
+    /**
+     * Gets the name of the branch that {@code HEAD} points to.
+     *
+     * @return the name of the branch that {@code HEAD} points to or {@code null} if unknown.
+     */
+    @CheckForNull
+    String getCurrentHead() {
+        return currentHead;
+    }
+
+    /**
+     * Gets the tags.
+     *
+     * @return the tags keyed by tag name.
+     */
+    @NonNull
+    Map<String, Tag> getTags() {
+        return tags;
+    }
+
+    /**
+     * Gets the named tag.
+     *
+     * @param name the tag name (without the {@code refs/tags/} prefix).
+     * @return the tag or {@code null} if the snapshot does not contain the tag.
+     */
+    @CheckForNull
+    Tag getTag(@NonNull String name) {
+        return tags.get(name);
+    }
+
+    /**
+     * A tag within a {@link RefSnapshot}.
+     */
+    static final class Tag {
+        /**
+         * The hash of the commit that the tag points to.
+         */
+        @CheckForNull
+        private final String commitHash;
+        /**
+         * The hash of the tag object for annotated tags.
+         */
+        @CheckForNull
+        private final String objectHash;
+        /**
+         * {@code true} if this is an annotated tag.
+         */
+        private final boolean annotated;
+
+        /**
+         * Constructor.
+         *
+         * @param commitHash the hash of the commit that the tag points to.
+         * @param objectHash the hash of the tag object for annotated tags.
+         * @param annotated  {@code true} if this is an annotated tag.
+         */
+        Tag(@CheckForNull String commitHash, @CheckForNull String objectHash, boolean annotated) {
+            this.commitHash = commitHash;
+            this.objectHash = objectHash;
+            this.annotated = annotated;
+        }
+
+        /**
+         * Gets the hash of the commit that the tag points to.
+         *
+         * @return the hash of the commit that the tag points to or {@code null} if unknown.
+         */
+        @CheckForNull
+        String getCommitHash() {
+            return commitHash;
+        }
+
+        /**
+         * Gets the hash of the tag object for annotated tags.
+         *
+         * @return the hash of the tag object or {@code null} if not an annotated tag or unknown.
+         */
+        @CheckForNull
+        String getObjectHash() {
+            return objectHash;
+        }
+
+        /**
+         * Returns {@code true} if this is an annotated tag.
+         *
+         * @return {@code true} if this is an annotated tag.
+         */
+        boolean isAnnotated() {
+            return annotated;
+        }
+
+        /**
+         * Gets the hash that identifies the tag revision, the tag object for annotated tags and the commit for
+         * lightweight tags.
+         *
+         * @return the hash that identifies the tag revision or {@code null} if unknown.
+         */
+        @CheckForNull
+        String getRevisionHash() {
+            return annotated ? objectHash : commitHash;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * The state of refs as reported by GitPubSub push events. Every push event carries the new hash of the pushed ref, so
+ * for a short period after a push the {@link ASFGitSCMFileSystem.TelescopeImpl} can answer lookups of that ref
+ * without asking GitWeb.
+ */
+final class RefState {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(RefState.class.getName());
+    /**
+     * How long the state reported by a push event is trusted, after which lookups go back to GitWeb.
+     */
+    private static /*mostly final*/ long FRESHNESS_MILLIS =
+            Long.getLong(RefState.class.getName() + ".FRESHNESS_MILLIS", TimeUnit.MINUTES.toMillis(5));
+    /**
+     * The pushed refs keyed by {@code remote#ref}.
+     */
+    private static final Cache<String, Pushed> PUSHED = CacheBuilder.newBuilder()
+            .maximumSize(8192)
+            .expireAfterWrite(Math.max(0L, FRESHNESS_MILLIS), TimeUnit.MILLISECONDS)
+            .build();
+
+    /**
+     * Utility class.
+     */
+    private RefState() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Records a push event. Pushes that create or delete a branch, or that change a tag, also discard the
+     * {@link RefSnapshot} of the remote as its listings are no longer correct.
+     *
+     * @param remote the remote.
+     * @param ref    the ref that was pushed, e.g. {@code refs/heads/master}.
+     * @param hash   the new hash of the ref or {@code null} if the ref was deleted.
+     */
+    static void onPush(@NonNull String remote, @NonNull String ref, @CheckForNull String hash) {
+        PUSHED.put(remote + "#" + ref, new Pushed(hash == null ? null : hash.toLowerCase(Locale.ENGLISH)));
+        RefSnapshot snapshot = RefSnapshot.peek(remote);
+        if (snapshot != null && (ref.startsWith(Constants.R_TAGS) || ref.startsWith(Constants.R_HEADS)
+                && (hash == null) == snapshot.getHeads().contains(ref.substring(Constants.R_HEADS.length())))) {
+            RefSnapshot.invalidate(remote);
+        }
+        LOGGER.log(Level.FINE, "Push of {0} on {1} to {2}", new Object[]{ref, remote, hash});
+    }
+
+    /**
+     * Gets the state of a ref if it has been pushed recently.
+     *
+     * @param remote the remote.
+     * @param ref    the ref, e.g. {@code refs/heads/master}.
+     * @return the state of the ref or {@code null} if there has been no recent push of the ref.
+     */
+    @CheckForNull
+    static Pushed peek(@NonNull String remote, @NonNull String ref) {
+        return PUSHED.getIfPresent(remote + "#" + ref);
+    }
+
+    /**
+     * The state of a ref reported by a push event.
+     */
+    static final class Pushed {
+        /**
+         * The hash of the ref or {@code null} if the ref was deleted.
+         */
+        @CheckForNull
+        private final String hash;
+
+        /**
+         * Constructor.
+         *
+         * @param hash the hash of the ref or {@code null} if the ref was deleted.
+         */
+        Pushed(@CheckForNull String hash) {
+            this.hash = hash;
+        }
+
+        /**
+         * Gets the hash of the ref.
+         *
+         * @return the hash of the ref or {@code null} if the ref was deleted.
+         */
+        @CheckForNull
+        String getHash() {
+            return hash;
+        }
+
+        /**
+         * Returns {@code true} if the ref was deleted.
+         *
+         * @return {@code true} if the ref was deleted.
+         */
+        boolean isDeleted() {
+            return hash == null;
+        }
+    }
+}
@@ -0,0 +1,625 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the ASF {@code repositories.json} catalogue with a streaming parser. On a cache miss a single background
+ * download parses the response straight off the connection into a compact {@link Catalogue} of plain arrays, and
+ * every caller that missed at the same time visits the repositories as soon as their entries have been decoded, so
+ * scanning starts before the transfer has finished and the connection is released as soon as it has. The catalogues
+ * are cached controller wide, keyed by URL, so that all the navigators of a server share one copy and, once the
+ * cached copy is older than {@link #CACHE_TTL_MILLIS}, the next scan revalidates it with a conditional request.
+ */
+final class RepositoryCatalogue {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(RepositoryCatalogue.class.getName());
+    /**
+     * Our object mapper, only used to decode individual repository entries.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /**
+     * How long a cached catalogue is used before it is revalidated.
+     */
+    private static /*mostly final*/ long CACHE_TTL_MILLIS =
+            Long.getLong(RepositoryCatalogue.class.getName() + ".CACHE_TTL_MILLIS", TimeUnit.MINUTES.toMillis(1));
+    /**
+     * The catalogues keyed by URL. A revalidation is made by one caller while the others keep using the cached copy.
+     */
+    private static final LoadingCache<String, Catalogue> CATALOGUES = CacheBuilder.newBuilder()
+            .maximumSize(16)
+            .refreshAfterWrite(Math.max(1L, CACHE_TTL_MILLIS), TimeUnit.MILLISECONDS)
+            .build(new CacheLoader<String, Catalogue>() {
+                @Override
+                public Catalogue load(@NonNull String url) throws IOException, InterruptedException {
+                    return download(url, null, new Catalogue.Builder());
+                }
+
+                @Override
+                public ListenableFuture<Catalogue> reload(@NonNull String url, @NonNull Catalogue previous)
+                        throws IOException, InterruptedException {
+                    return Futures.immediateFuture(download(url, previous, new Catalogue.Builder()));
+                }
+            });
+    /**
+     * The catalogues that are being downloaded after a cache miss, keyed by URL, guarded by itself.
+     */
+    private static final Map<String, Catalogue.Builder> LOADING = new HashMap<>();
+    /**
+     * The threads that download the catalogues after a cache miss.
+     */
+    private static final ExecutorService DOWNLOADS = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), RepositoryCatalogue.class.getName()));
+
+    /**
+     * Utility class.
+     */
+    private RepositoryCatalogue() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Gets the URL of the catalogue for the supplied GitWeb server.
+     *
+     * @param server the GitWeb server, e.g. {@code https://gitbox.apache.org/repos/asf}.
+     * @return the URL of the catalogue.
+     */
+    @NonNull
+    static String urlOf(@NonNull String server) {
+        return server.replaceAll("repos/[^/]+$", "repositories.json");
+    }
+
+    /**
+     * Visits each repository of the catalogue. If the shared cache does not have a copy the catalogue is retrieved,
+     * once however many callers miss at the same time, and each repository is visited as soon as it has been parsed.
+     *
+     * @param url     the URL of the catalogue.
+     * @param visitor the visitor.
+     * @return {@code true} if the visitor stopped the walk.
+     * @throws IOException          if the catalogue could not be retrieved or parsed.
+     * @throws InterruptedException if interrupted while retrieving the catalogue.
+     */
+    static boolean fetch(@NonNull final String url, @NonNull Visitor visitor) throws IOException, InterruptedException {
+        Catalogue cached = CATALOGUES.getIfPresent(url);
+        if (cached != null) {
+            return cached.visit(visitor);
+        }
+        final Catalogue.Builder builder;
+        boolean first = false;
+        synchronized (LOADING) {
+            // the download may have completed since we looked
+            Catalogue.Builder loading = LOADING.get(url);
+            cached = loading == null ? CATALOGUES.getIfPresent(url) : null;
+            if (loading == null && cached == null) {
+                loading = new Catalogue.Builder();
+                LOADING.put(url, loading);
+                first = true;
+            }
+            builder = loading;
+        }
+        if (cached != null) {
+            return cached.visit(visitor);
+        }
+        if (first) {
+            DOWNLOADS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Catalogue catalogue = download(url, null, builder);
+                        synchronized (LOADING) {
+                            CATALOGUES.put(url, catalogue);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        builder.fail(e);
+                    } catch (InterruptedException e) {
+                        builder.fail(e);
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        synchronized (LOADING) {
+                            LOADING.remove(url);
+                        }
+                    }
+                }
+            });
+        }
+        return builder.visit(url, visitor);
+    }
+
+    /**
+     * Discards any cached copy of the catalogue.
+     *
+     * @param url the URL of the catalogue.
+     */
+    static void invalidate(@NonNull String url) {
+        CATALOGUES.invalidate(url);
+    }
+
+    /**
+     * Retrieves the catalogue, with the same throttling and timeouts as the other GitWeb requests.
+     *
+     * @param url      the URL of the catalogue.
+     * @param previous the cached copy to revalidate or {@code null} to retrieve the catalogue unconditionally.
+     * @param builder  the builder to parse the catalogue into.
+     * @return the catalogue, which is {@code previous} if it has not changed.
+     * @throws IOException          if the catalogue could not be retrieved or parsed.
+     * @throws InterruptedException if interrupted while retrieving the catalogue.
+     */
+    @NonNull
+    private static Catalogue download(@NonNull String url, @CheckForNull Catalogue previous,
+                                      @NonNull Catalogue.Builder builder) throws IOException, InterruptedException {
+        ASFGitSCMFileSystem.preRequestSleep();
+        LOGGER.log(Level.FINE, "Reading repository catalogue {0}", url);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(ASFGitSCMFileSystem.requestTimeout());
+            connection.setReadTimeout(ASFGitSCMFileSystem.requestTimeout());
+            if (previous != null && previous.etag != null) {
+                connection.setRequestProperty("If-None-Match", previous.etag);
+            }
+            if (previous != null && previous.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+            }
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+                LOGGER.log(Level.FINE, "Repository catalogue {0} not modified", url);
+                return previous;
+            }
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new FileNotFoundException(url);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected HTTP status " + status + " for " + url);
+            }
+            // the builder never blocks, so the connection is only held for the transfer itself
+            try (InputStream in = connection.getInputStream()) {
+                parse(in, builder);
+            }
+            return builder.build(connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Parses a catalogue, visiting each repository as it is read.
+     *
+     * @param in      the catalogue.
+     * @param visitor the visitor.
+     * @return {@code true} if the visitor stopped the walk.
+     * @throws IOException          if the catalogue could not be parsed.
+     * @throws InterruptedException if interrupted while visiting.
+     */
+    static boolean parse(@NonNull InputStream in, @NonNull Visitor visitor) throws IOException, InterruptedException {
+        try (JsonParser parser = MAPPER.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("projects".equals(field) && token == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String project = parser.getCurrentName();
+                        if (parser.nextToken() == JsonToken.START_OBJECT && parseProject(parser, project, visitor)) {
+                            return true;
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a project entry, visiting each of its repositories.
+     *
+     * @param parser  the parser, positioned on the start of the project entry.
+     * @param project the project name.
+     * @param visitor the visitor.
+     * @return {@code true} if the visitor stopped the walk.
+     * @throws IOException          if the entry could not be parsed.
+     * @throws InterruptedException if interrupted while visiting.
+     */
+    private static boolean parseProject(JsonParser parser, String project, Visitor visitor)
+            throws IOException, InterruptedException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("repositories".equals(field) && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    JsonNode entry = parser.readValueAsTree();
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    if (visitor.visit(new Repository(project, name, entry))) {
+                        return true;
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Receives the repositories of a catalogue.
+     */
+    interface Visitor {
+        /**
+         * Visits a repository.
+         *
+         * @param repository the repository.
+         * @return {@code true} to stop the walk.
+         * @throws IOException          if the repository could not be processed.
+         * @throws InterruptedException if interrupted while processing the repository.
+         */
+        boolean visit(@NonNull Repository repository) throws IOException, InterruptedException;
+    }
+
+    /**
+     * A parsed catalogue, held as parallel arrays so that the thousands of entries take little memory. Instances are
+     * immutable and shared by all the navigators of a server.
+     */
+    static final class Catalogue {
+        /**
+         * The project names.
+         */
+        private final String[] projects;
+        /**
+         * The repository names.
+         */
+        private final String[] names;
+        /**
+         * The repository descriptions.
+         */
+        private final String[] descriptions;
+        /**
+         * The times of the last updates.
+         */
+        private final long[] lastUpdated;
+        /**
+         * The numbers of commits.
+         */
+        private final long[] commits;
+        /**
+         * The entity tag of the response or {@code null}.
+         */
+        @CheckForNull
+        private final String etag;
+        /**
+         * The last modified header of the response or {@code null}.
+         */
+        @CheckForNull
+        private final String lastModified;
+
+        /**
+         * Constructor.
+         *
+         * @param projects     the project names.
+         * @param names        the repository names.
+         * @param descriptions the repository descriptions.
+         * @param lastUpdated  the times of the last updates.
+         * @param commits      the numbers of commits.
+         * @param etag         the entity tag of the response or {@code null}.
+         * @param lastModified the last modified header of the response or {@code null}.
+         */
+        private Catalogue(@NonNull String[] projects, @NonNull String[] names, @NonNull String[] descriptions,
+                          @NonNull long[] lastUpdated, @NonNull long[] commits, @CheckForNull String etag,
+                          @CheckForNull String lastModified) {
+            this.projects = projects;
+            this.names = names;
+            this.descriptions = descriptions;
+            this.lastUpdated = lastUpdated;
+            this.commits = commits;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Visits each repository in catalogue order.
+         *
+         * @param visitor the visitor.
+         * @return {@code true} if the visitor stopped the walk.
+         * @throws IOException          if the visitor failed.
+         * @throws InterruptedException if interrupted while visiting.
+         */
+        boolean visit(@NonNull Visitor visitor) throws IOException, InterruptedException {
+            for (int i = 0; i < names.length; i++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (visitor.visit(new Repository(projects[i], names[i], descriptions[i], lastUpdated[i],
+                        commits[i]))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Accumulates a catalogue while it is parsed. Any number of threads can visit the repositories accumulated so
+         * far while the parse is still going, waiting for more until the catalogue is built or the parse fails.
+         */
+        private static final class Builder implements Visitor {
+            /**
+             * The number of repositories, guarded by {@code this}.
+             */
+            private int size;
+            /**
+             * Set once the catalogue has been built, guarded by {@code this}.
+             */
+            private boolean complete;
+            /**
+             * The reason the parse failed or {@code null}, guarded by {@code this}.
+             */
+            @CheckForNull
+            private Throwable failure;
+            /**
+             * The project names, guarded by {@code this}.
+             */
+            private String[] projects = new String[256];
+            /**
+             * The repository names, guarded by {@code this}.
+             */
+            private String[] names = new String[256];
+            /**
+             * The repository descriptions, guarded by {@code this}.
+             */
+            private String[] descriptions = new String[256];
+            /**
+             * The times of the last updates, guarded by {@code this}.
+             */
+            private long[] lastUpdated = new long[256];
+            /**
+             * The numbers of commits, guarded by {@code this}.
+             */
+            private long[] commits = new long[256];
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public synchronized boolean visit(@NonNull Repository repository) {
+                if (size == names.length) {
+                    int capacity = size * 2;
+                    projects = Arrays.copyOf(projects, capacity);
+                    names = Arrays.copyOf(names, capacity);
+                    descriptions = Arrays.copyOf(descriptions, capacity);
+                    lastUpdated = Arrays.copyOf(lastUpdated, capacity);
+                    commits = Arrays.copyOf(commits, capacity);
+                }
+                projects[size] = repository.getProject();
+                names[size] = repository.getName();
+                descriptions[size] = repository.getDescription();
+                lastUpdated[size] = repository.getLastUpdated();
+                commits[size] = repository.getCommits();
+                size++;
+                notifyAll();
+                return false;
+            }
+
+            /**
+             * Visits each repository in catalogue order as it is parsed.
+             *
+             * @param url     the URL of the catalogue, for error messages.
+             * @param visitor the visitor.
+             * @return {@code true} if the visitor stopped the walk.
+             * @throws IOException          if the catalogue could not be retrieved or parsed, or the visitor failed.
+             * @throws InterruptedException if interrupted while visiting or waiting for the parse.
+             */
+            boolean visit(@NonNull String url, @NonNull Visitor visitor) throws IOException, InterruptedException {
+                for (int i = 0; ; i++) {
+                    Repository repository;
+                    synchronized (this) {
+                        while (i >= size && !complete && failure == null) {
+                            wait();
+                        }
+                        if (i >= size) {
+                            if (failure != null) {
+                                throw new IOException("Could not read " + url, failure);
+                            }
+                            return false;
+                        }
+                        repository = new Repository(projects[i], names[i], descriptions[i], lastUpdated[i],
+                                commits[i]);
+                    }
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    if (visitor.visit(repository)) {
+                        return true;
+                    }
+                }
+            }
+
+            /**
+             * Records that the parse failed, the repositories parsed so far are still visited.
+             *
+             * @param failure the reason.
+             */
+            synchronized void fail(@NonNull Throwable failure) {
+                this.failure = failure;
+                notifyAll();
+            }
+
+            /**
+             * Builds the catalogue.
+             *
+             * @param etag         the entity tag of the response or {@code null}.
+             * @param lastModified the last modified header of the response or {@code null}.
+             * @return the catalogue.
+             */
+            @NonNull
+            synchronized Catalogue build(@CheckForNull String etag, @CheckForNull String lastModified) {
+                complete = true;
+                notifyAll();
+                return new Catalogue(Arrays.copyOf(projects, size), Arrays.copyOf(names, size),
+                        Arrays.copyOf(descriptions, size), Arrays.copyOf(lastUpdated, size),
+                        Arrays.copyOf(commits, size), etag, lastModified);
+            }
+        }
+    }
+
+    /**
+     * A repository entry of the catalogue.
+     */
+    static final class Repository {
+        /**
+         * The name of the project that the repository belongs to.
+         */
+        @NonNull
+        private final String project;
+        /**
+         * The name of the repository.
+         */
+        @NonNull
+        private final String name;
+        /**
+         * The description of the repository or {@code null}.
+         */
+        @CheckForNull
+        private final String description;
+        /**
+         * The time of the last update in milliseconds since the epoch, or {@code -1} if unknown.
+         */
+        private final long lastUpdated;
+        /**
+         * The number of commits, or {@code -1} if unknown.
+         */
+        private final long commits;
+
+        /**
+         * Constructor.
+         *
+         * @param project the name of the project that the repository belongs to.
+         * @param name    the name of the repository.
+         * @param entry   the catalogue entry of the repository.
+         */
+        Repository(@NonNull String project, @NonNull String name, @CheckForNull JsonNode entry) {
+            this.project = project;
+            this.name = name;
+            if (entry != null && entry.isObject()) {
+                this.description = entry.hasNonNull("description") ? entry.get("description").asText() : null;
+                this.lastUpdated = entry.hasNonNull("last_update_int")
+                        ? entry.get("last_update_int").asLong() * 1000L
+                        : -1L;
+                this.commits = entry.hasNonNull("commits") ? entry.get("commits").asLong() : -1L;
+            } else {
+                this.description = null;
+                this.lastUpdated = -1L;
+                this.commits = -1L;
+            }
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param project     the name of the project that the repository belongs to.
+         * @param name        the name of the repository.
+         * @param description the description of the repository or {@code null}.
+         * @param lastUpdated the time of the last update in milliseconds since the epoch, or {@code -1} if unknown.
+         * @param commits     the number of commits, or {@code -1} if unknown.
+         */
+        Repository(@NonNull String project, @NonNull String name, @CheckForNull String description, long lastUpdated,
+                   long commits) {
+            this.project = project;
+            this.name = name;
+            this.description = description;
+            this.lastUpdated = lastUpdated;
+            this.commits = commits;
+        }
+
+        /**
+         * Gets the name of the project that the repository belongs to.
+         *
+         * @return the name of the project that the repository belongs to.
+         */
+        @NonNull
+        String getProject() {
+            return project;
+        }
+
+        /**
+         * Gets the name of the repository.
+         *
+         * @return the name of the repository.
+         */
+        @NonNull
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the description of the repository.
+         *
+         * @return the description of the repository or {@code null}.
+         */
+        @CheckForNull
+        String getDescription() {
+            return description;
+        }
+
+        /**
+         * Gets the time of the last update.
+         *
+         * @return the time of the last update in milliseconds since the epoch, or {@code -1} if unknown.
+         */
+        long getLastUpdated() {
+            return lastUpdated;
+        }
+
+        /**
+         * Gets the number of commits.
+         *
+         * @return the number of commits, or {@code -1} if unknown.
+         */
+        long getCommits() {
+            return commits;
+        }
+    }
+}
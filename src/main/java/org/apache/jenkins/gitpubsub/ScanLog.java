@@ -0,0 +1,220 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.console.HyperlinkNote;
+import hudson.model.TaskListener;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scan log of an {@link ASFGitSCMNavigator}. By default only the proposed repositories are logged individually
+ * and the scan ends with a summary of counts and timings, which keeps the log of a scan of thousands of repositories
+ * short. The verbose log, with a line for every repository checked and every repository ignored, is opt-in.
+ */
+final class ScanLog {
+
+    /**
+     * Whether to log every repository checked.
+     */
+    private static /*mostly final*/ boolean VERBOSE = Boolean.getBoolean(ScanLog.class.getName() + ".VERBOSE");
+    /**
+     * The server.
+     */
+    @NonNull
+    private final String server;
+    /**
+     * The scan log.
+     */
+    @NonNull
+    private final PrintStream out;
+    /**
+     * Whether to log every repository checked.
+     */
+    private final boolean verbose;
+    /**
+     * When the scan started.
+     */
+    private final long started = System.nanoTime();
+    /**
+     * When the check of the current repository started.
+     */
+    private long checking;
+    /**
+     * The time spent checking repositories.
+     */
+    private long checkingNanos;
+    /**
+     * The number of repositories checked.
+     */
+    private int checked;
+    /**
+     * The number of repositories proposed.
+     */
+    private int proposed;
+    /**
+     * The number of repositories ignored.
+     */
+    private int ignored;
+    /**
+     * The number of repositories skipped because of their project.
+     */
+    private int skippedProject;
+    /**
+     * The number of repositories skipped because they are inactive.
+     */
+    private int skippedInactive;
+
+    /**
+     * Constructor.
+     *
+     * @param server   the server.
+     * @param listener the listener.
+     * @param verbose  whether to log every repository checked.
+     */
+    private ScanLog(@NonNull String server, @NonNull TaskListener listener, boolean verbose) {
+        this.server = server;
+        this.out = listener.getLogger();
+        this.verbose = verbose;
+    }
+
+    /**
+     * Creates the log for a scan of all repositories.
+     *
+     * @param server   the server.
+     * @param listener the listener.
+     * @return the log.
+     */
+    @NonNull
+    static ScanLog scan(@NonNull String server, @NonNull TaskListener listener) {
+        return new ScanLog(server, listener, VERBOSE);
+    }
+
+    /**
+     * Creates the log for a check of a single repository, which is always verbose.
+     *
+     * @param server   the server.
+     * @param listener the listener.
+     * @return the log.
+     */
+    @NonNull
+    static ScanLog single(@NonNull String server, @NonNull TaskListener listener) {
+        return new ScanLog(server, listener, true);
+    }
+
+    /**
+     * Records the start of the check of a repository.
+     *
+     * @param repo the repository name.
+     */
+    void checking(@NonNull String repo) {
+        checked++;
+        checking = System.nanoTime();
+        if (verbose) {
+            out.format("%n    Checking repository %s%n", link(repo));
+        }
+    }
+
+    /**
+     * Records the end of the check of the current repository.
+     */
+    void checked() {
+        checkingNanos += System.nanoTime() - checking;
+    }
+
+    /**
+     * Records that a repository was proposed.
+     *
+     * @param repo the repository name.
+     */
+    void proposed(@NonNull String repo) {
+        proposed++;
+        if (verbose) {
+            out.format("      Proposing %s%n", repo);
+        } else {
+            out.format("    Proposing %s%n", link(repo));
+        }
+    }
+
+    /**
+     * Records that a repository was ignored.
+     *
+     * @param repo the repository name.
+     */
+    void ignored(@NonNull String repo) {
+        ignored++;
+        if (verbose) {
+            out.format("      Ignoring %s%n", repo);
+        }
+    }
+
+    /**
+     * Records that a repository was skipped because of its project.
+     */
+    void skippedProject() {
+        skippedProject++;
+    }
+
+    /**
+     * Records that a repository was skipped because it is inactive.
+     */
+    void skippedInactive() {
+        skippedInactive++;
+    }
+
+    /**
+     * Logs the end of the scan.
+     *
+     * @param complete {@code true} if the scan stopped because the request was completed.
+     */
+    void summary(boolean complete) {
+        if (verbose) {
+            if (skippedProject > 0) {
+                out.format("%n  %d repositories of other or retired projects were skipped%n", skippedProject);
+            }
+            if (skippedInactive > 0) {
+                out.format("%n  %d inactive repositories were skipped%n", skippedInactive);
+            }
+            out.format(complete
+                    ? "%n  %d repositories were processed (query complete)%n"
+                    : "%n  %d repositories were processed%n", checked);
+            return;
+        }
+        out.format("%n  %d repositories were processed%s%n", checked, complete ? " (query complete)" : "");
+        out.format("    %-40s %8d%n", "Proposed", proposed);
+        out.format("    %-40s %8d%n", "Ignored", ignored);
+        out.format("    %-40s %8d%n", "Skipped, other or retired project", skippedProject);
+        out.format("    %-40s %8d%n", "Skipped, inactive", skippedInactive);
+        out.format("    %-40s %7ds%n", "Time checking repositories", TimeUnit.NANOSECONDS.toSeconds(checkingNanos));
+        out.format("    %-40s %7ds%n", "Total time", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+    }
+
+    /**
+     * Formats a link to the GitWeb summary of a repository.
+     *
+     * @param repo the repository name.
+     * @return the link.
+     */
+    @NonNull
+    private String link(@NonNull String repo) {
+        try {
+            return HyperlinkNote.encodeTo(server + "?p=" + URLEncoder.encode(repo, "UTF-8") + ".git;a=summary", repo);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError("JLS mandates UTF-8 as supported encoding");
+        }
+    }
+}
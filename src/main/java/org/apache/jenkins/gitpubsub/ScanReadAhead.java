@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.scm.api.SCMHead;
+
+/**
+ * Overlaps the network bound part of an organization scan. While the scan thread processes one repository, a bounded
+ * pool of workers retrieves the ref listings and the default branch root listing of the next few repositories into
+ * the shared caches. The repositories are still handed to the {@link ASFGitSCMNavigatorRequest} and the observer one at
+ * a time and in catalogue order, so the observer does not need to be thread safe and the scan log reads as before.
+ * Every request the workers make goes through {@link ASFGitSCMFileSystem#preRequestSleep()} like any other.
+ */
+final class ScanReadAhead implements Closeable {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ScanReadAhead.class.getName());
+    /**
+     * The number of repositories to work on concurrently, {@code 0} or {@code 1} to scan strictly one repository
+     * after another.
+     */
+    static /*mostly final*/ int PARALLELISM =
+            Integer.getInteger(ScanReadAhead.class.getName() + ".PARALLELISM", 0);
+    /**
+     * The server.
+     */
+    @NonNull
+    private final String server;
+    /**
+     * Whether the sources use the Git smart HTTP ref advertisement.
+     */
+    private final boolean smartHttp;
+    /**
+     * The workers.
+     */
+    @NonNull
+    private final ExecutorService executor;
+    /**
+     * The repositories waiting to be processed, in catalogue order, with their read ahead.
+     */
+    private final Deque<Map.Entry<String, Future<?>>> window = new ArrayDeque<>();
+
+    /**
+     * Constructor.
+     *
+     * @param server    the server.
+     * @param smartHttp whether the sources use the Git smart HTTP ref advertisement.
+     */
+    private ScanReadAhead(@NonNull String server, boolean smartHttp) {
+        this.server = server;
+        this.smartHttp = smartHttp;
+        this.executor = Executors.newFixedThreadPool(PARALLELISM,
+                new NamingThreadFactory(new DaemonThreadFactory(), ScanReadAhead.class.getName()));
+    }
+
+    /**
+     * Creates a read ahead for a scan if parallel scanning is enabled.
+     *
+     * @param server    the server.
+     * @param smartHttp whether the sources use the Git smart HTTP ref advertisement.
+     * @return the read ahead or {@code null} if repositories should be processed strictly one after another.
+     */
+    @CheckForNull
+    static ScanReadAhead create(@NonNull String server, boolean smartHttp) {
+        return PARALLELISM > 1 ? new ScanReadAhead(server, smartHttp) : null;
+    }
+
+    /**
+     * Adds the next repository of the scan.
+     *
+     * @param repo     the repository name.
+     * @param readAhead {@code false} if the repository will be excluded anyway, so there is nothing worth reading.
+     */
+    void add(@NonNull final String repo, boolean readAhead) {
+        Future<?> future = null;
+        if (readAhead) {
+            future = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    warm(repo);
+                }
+            });
+        }
+        window.addLast(new AbstractMap.SimpleImmutableEntry<String, Future<?>>(repo, future));
+    }
+
+    /**
+     * Takes the next repository to process once it has been read ahead.
+     *
+     * @param drain {@code true} at the end of the catalogue, to take repositories even though the window is not full.
+     * @return the next repository to process or {@code null} if the window should fill up more first.
+     * @throws InterruptedException if interrupted while waiting for the read ahead.
+     */
+    @CheckForNull
+    String next(boolean drain) throws InterruptedException {
+        if (window.isEmpty() || !drain && window.size() <= PARALLELISM) {
+            return null;
+        }
+        Map.Entry<String, Future<?>> entry = window.removeFirst();
+        if (entry.getValue() != null) {
+            try {
+                entry.getValue().get();
+            } catch (ExecutionException e) {
+                // the repository will be processed anyway, it just will not find anything in the caches
+                LOGGER.log(Level.FINE, "Could not read ahead " + entry.getKey(), e.getCause());
+            }
+        }
+        return entry.getKey();
+    }
+
+    /**
+     * Reads the ref listings and the default branch root listing of a repository into the shared caches.
+     *
+     * @param repo the repository name.
+     */
+    private void warm(@NonNull String repo) {
+        String remote = ASFGitSCMSourceBuilder.remoteOf(server, repo);
+        try {
+            RefSnapshot.useSmartHttp(remote, smartHttp);
+            String head = RefSnapshot.of(remote).getCurrentHead();
+            if (head != null) {
+                try (ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(remote, new SCMHead(head), null)) {
+                    fs.listTree("");
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not read ahead " + remote, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        for (Map.Entry<String, Future<?>> entry : window) {
+            if (entry.getValue() != null) {
+                entry.getValue().cancel(true);
+            }
+        }
+        window.clear();
+        executor.shutdownNow();
+    }
+}
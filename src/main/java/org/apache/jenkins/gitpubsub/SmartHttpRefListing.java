@@ -0,0 +1,407 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * Lists the refs of a remote from the Git smart HTTP ref advertisement rather than by scraping GitWeb. Protocol v2
+ * {@code ls-refs} is used when the server offers it so that only the requested ref prefixes are transferred,
+ * otherwise the protocol v0 advertisement is parsed.
+ */
+final class SmartHttpRefListing {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(SmartHttpRefListing.class.getName());
+    /**
+     * The suffix of a peeled ref in the protocol v0 advertisement.
+     */
+    private static final String PEELED_SUFFIX = "^{}";
+
+    /**
+     * Utility class.
+     */
+    private SmartHttpRefListing() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Lists the refs of the supplied remote.
+     *
+     * @param remote   the remote.
+     * @param prefixes the ref prefixes to list, e.g. {@code HEAD}, {@code refs/heads/}.
+     * @return the snapshot of the listed refs.
+     * @throws IOException          if the refs could not be listed.
+     * @throws InterruptedException if interrupted while listing the refs.
+     */
+    @NonNull
+    static RefSnapshot fetch(@NonNull String remote, @NonNull String... prefixes)
+            throws IOException, InterruptedException {
+        String url = remote + "/info/refs?service=git-upload-pack";
+        ASFGitSCMFileSystem.preRequestSleep();
+        HttpURLConnection connection = open(url);
+        connection.setRequestProperty("Git-Protocol", "version=2");
+        Advertisement advertisement = new Advertisement(prefixes);
+        boolean lsRefs = false;
+        try {
+            checkResponse(connection, url);
+            try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+                String line = readPacket(in);
+                if (line != null && line.startsWith("# service=")) {
+                    // smart HTTP prefixes the advertisement with the service name and a flush
+                    while (line != null) {
+                        line = readPacket(in);
+                    }
+                    line = readPacket(in);
+                }
+                if ("version 2".equals(line)) {
+                    for (line = readPacket(in); line != null; line = readPacket(in)) {
+                        if (line.equals("ls-refs") || line.startsWith("ls-refs=")) {
+                            lsRefs = true;
+                        }
+                    }
+                    if (!lsRefs) {
+                        throw new IOException("Server for " + remote + " speaks protocol v2 without ls-refs");
+                    }
+                } else {
+                    if ("version 1".equals(line)) {
+                        line = readPacket(in);
+                    }
+                    for (; line != null; line = readPacket(in)) {
+                        advertisement.parseV0(line);
+                    }
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+        if (lsRefs) {
+            lsRefs(remote, advertisement, prefixes);
+        }
+        LOGGER.log(Level.FINE, "Listed refs of {0} using protocol {1}", new Object[]{remote, lsRefs ? "v2" : "v0"});
+        return advertisement.toSnapshot();
+    }
+
+    /**
+     * Issues a protocol v2 {@code ls-refs} command.
+     *
+     * @param remote        the remote.
+     * @param advertisement the advertisement to populate.
+     * @param prefixes      the ref prefixes to list.
+     * @throws IOException          if the refs could not be listed.
+     * @throws InterruptedException if interrupted while listing the refs.
+     */
+    private static void lsRefs(@NonNull String remote, @NonNull Advertisement advertisement,
+                               @NonNull String... prefixes) throws IOException, InterruptedException {
+        String url = remote + "/git-upload-pack";
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        writePacket(request, "command=ls-refs\n");
+        request.write("0001".getBytes(StandardCharsets.US_ASCII));
+        writePacket(request, "symrefs\n");
+        writePacket(request, "peel\n");
+        for (String prefix : prefixes) {
+            writePacket(request, "ref-prefix " + prefix + "\n");
+        }
+        request.write("0000".getBytes(StandardCharsets.US_ASCII));
+        ASFGitSCMFileSystem.preRequestSleep();
+        HttpURLConnection connection = open(url);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Git-Protocol", "version=2");
+        connection.setRequestProperty("Content-Type", "application/x-git-upload-pack-request");
+        connection.setRequestProperty("Accept", "application/x-git-upload-pack-result");
+        connection.setFixedLengthStreamingMode(request.size());
+        try {
+            try (OutputStream out = connection.getOutputStream()) {
+                request.writeTo(out);
+            }
+            checkResponse(connection, url);
+            try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+                for (String line = readPacket(in); line != null; line = readPacket(in)) {
+                    advertisement.parseV2(line);
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Opens a connection with the standard request timeouts.
+     *
+     * @param url the URL.
+     * @return the connection.
+     * @throws IOException if the connection could not be opened.
+     */
+    private static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(ASFGitSCMFileSystem.requestTimeout());
+        connection.setReadTimeout(ASFGitSCMFileSystem.requestTimeout());
+        connection.setUseCaches(false);
+        connection.setRequestProperty("User-Agent", "git/2.0 (" + SmartHttpRefListing.class.getName() + ")");
+        return connection;
+    }
+
+    /**
+     * Checks that the response is a smart HTTP response.
+     *
+     * @param connection the connection.
+     * @param url        the URL.
+     * @throws IOException if the response is not a smart HTTP response.
+     */
+    private static void checkResponse(HttpURLConnection connection, String url) throws IOException {
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected HTTP status " + connection.getResponseCode() + " from " + url);
+        }
+        String contentType = connection.getContentType();
+        if (contentType == null || !contentType.startsWith("application/x-git-upload-pack-")) {
+            throw new IOException("Server does not support smart HTTP, got " + contentType + " from " + url);
+        }
+    }
+
+    /**
+     * Reads a single pkt-line.
+     *
+     * @param in the input stream.
+     * @return the payload without any trailing line feed or {@code null} for a flush, delimiter or response end
+     * packet.
+     * @throws IOException if the stream is not a valid pkt-line stream.
+     */
+    @CheckForNull
+    static String readPacket(@NonNull InputStream in) throws IOException {
+        int length;
+        try {
+            length = Integer.parseInt(new String(readFully(in, 4), StandardCharsets.US_ASCII), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid pkt-line length", e);
+        }
+        if (length < 4) {
+            // 0000 flush, 0001 delimiter, 0002 response end
+            return null;
+        }
+        String line = new String(readFully(in, length - 4), StandardCharsets.UTF_8);
+        return line.endsWith("\n") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    /**
+     * Writes a single pkt-line.
+     *
+     * @param out     the output stream.
+     * @param payload the payload.
+     * @throws IOException if the packet could not be written.
+     */
+    static void writePacket(@NonNull OutputStream out, @NonNull String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        out.write(String.format("%04x", bytes.length + 4).getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+    }
+
+    /**
+     * Reads exactly the requested number of bytes.
+     *
+     * @param in     the input stream.
+     * @param length the number of bytes.
+     * @return the bytes.
+     * @throws IOException if the stream ends early.
+     */
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(result, offset, length - offset);
+            if (count < 0) {
+                throw new EOFException("Truncated pkt-line stream");
+            }
+            offset += count;
+        }
+        return result;
+    }
+
+    /**
+     * Accumulates the refs from an advertisement.
+     */
+    static final class Advertisement {
+        /**
+         * The prefixes of the refs we are interested in.
+         */
+        private final String[] prefixes;
+        /**
+         * The branch hashes keyed by branch name.
+         */
+        private final Map<String, String> heads = new LinkedHashMap<>();
+        /**
+         * The hashes that tag refs point to keyed by tag name.
+         */
+        private final Map<String, String> tags = new LinkedHashMap<>();
+        /**
+         * The peeled commit hashes of annotated tags keyed by tag name.
+         */
+        private final Map<String, String> peeled = new HashMap<>();
+        /**
+         * The hash of {@code HEAD}.
+         */
+        private String headHash;
+        /**
+         * The target of the {@code HEAD} symref.
+         */
+        private String headTarget;
+
+        /**
+         * Constructor.
+         *
+         * @param prefixes the prefixes of the refs we are interested in.
+         */
+        Advertisement(String... prefixes) {
+            this.prefixes = prefixes;
+        }
+
+        /**
+         * Parses a protocol v0 ref line.
+         *
+         * @param line the line.
+         */
+        void parseV0(@NonNull String line) {
+            int nul = line.indexOf('\0');
+            if (nul != -1) {
+                for (String capability : line.substring(nul + 1).split(" ")) {
+                    if (capability.startsWith("symref=" + Constants.HEAD + ":")) {
+                        headTarget = capability.substring(("symref=" + Constants.HEAD + ":").length());
+                    }
+                }
+                line = line.substring(0, nul);
+            }
+            int space = line.indexOf(' ');
+            if (space == -1) {
+                return;
+            }
+            String hash = line.substring(0, space);
+            String ref = line.substring(space + 1);
+            if (ref.endsWith(PEELED_SUFFIX)) {
+                ref = ref.substring(0, ref.length() - PEELED_SUFFIX.length());
+                if (ref.startsWith(Constants.R_TAGS)) {
+                    peeled.put(ref.substring(Constants.R_TAGS.length()), hash);
+                }
+            } else {
+                add(ref, hash);
+            }
+        }
+
+        /**
+         * Parses a protocol v2 {@code ls-refs} line.
+         *
+         * @param line the line.
+         */
+        void parseV2(@NonNull String line) {
+            String[] parts = line.split(" ");
+            if (parts.length < 2) {
+                return;
+            }
+            String ref = parts[1];
+            for (int i = 2; i < parts.length; i++) {
+                if (parts[i].startsWith("symref-target:") && Constants.HEAD.equals(ref)) {
+                    headTarget = parts[i].substring("symref-target:".length());
+                } else if (parts[i].startsWith("peeled:") && ref.startsWith(Constants.R_TAGS)) {
+                    peeled.put(ref.substring(Constants.R_TAGS.length()), parts[i].substring("peeled:".length()));
+                }
+            }
+            add(ref, parts[0]);
+        }
+
+        /**
+         * Records a ref.
+         *
+         * @param ref  the ref.
+         * @param hash the hash.
+         */
+        private void add(String ref, String hash) {
+            if (!wanted(ref)) {
+                return;
+            }
+            if (Constants.HEAD.equals(ref)) {
+                headHash = hash;
+            } else if (ref.startsWith(Constants.R_HEADS)) {
+                heads.put(ref.substring(Constants.R_HEADS.length()), hash);
+            } else if (ref.startsWith(Constants.R_TAGS)) {
+                tags.put(ref.substring(Constants.R_TAGS.length()), hash);
+            }
+        }
+
+        /**
+         * Checks if the ref matches one of the requested prefixes.
+         *
+         * @param ref the ref.
+         * @return {@code true} if the ref was requested.
+         */
+        private boolean wanted(String ref) {
+            for (String prefix : prefixes) {
+                if (ref.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Converts the advertisement into a {@link RefSnapshot}.
+         *
+         * @return the snapshot.
+         */
+        @NonNull
+        RefSnapshot toSnapshot() {
+            String currentHead = null;
+            if (headTarget != null && headTarget.startsWith(Constants.R_HEADS)) {
+                currentHead = headTarget.substring(Constants.R_HEADS.length());
+            } else if (headHash != null) {
+                // old servers do not advertise the symref, so guess the same way git clone does
+                List<String> candidates = new ArrayList<>();
+                for (Map.Entry<String, String> head : heads.entrySet()) {
+                    if (headHash.equals(head.getValue())) {
+                        candidates.add(head.getKey());
+                    }
+                }
+                currentHead = candidates.contains(Constants.MASTER)
+                        ? Constants.MASTER
+                        : (candidates.isEmpty() ? null : candidates.get(0));
+            }
+            Map<String, RefSnapshot.Tag> result = new LinkedHashMap<>();
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                String commit = peeled.get(tag.getKey());
+                result.put(tag.getKey(), commit == null
+                        ? new RefSnapshot.Tag(tag.getValue(), null, false)
+                        : new RefSnapshot.Tag(commit, tag.getValue(), true));
+            }
+            return new RefSnapshot(heads, currentHead, result);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import hudson.Extension;
+import javax.annotation.Nonnull;
+import jenkins.scm.api.SCMNavigator;
+import jenkins.scm.api.trait.SCMNavigatorContext;
+import jenkins.scm.api.trait.SCMNavigatorTrait;
+import jenkins.scm.api.trait.SCMNavigatorTraitDescriptor;
+import jenkins.scm.api.trait.SCMSourceBuilder;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A {@link SCMNavigatorTrait} that lists the branches and tags of the repositories discovered by a
+ * {@link ASFGitSCMNavigator} from the Git smart HTTP ref advertisement instead of scraping GitWeb. Each discovered
+ * source gets a {@link SmartHttpRefsSCMSourceTrait}, so the setting travels with the source.
+ */
+public class SmartHttpRefsSCMNavigatorTrait extends SCMNavigatorTrait {
+
+    @DataBoundConstructor
+    public SmartHttpRefsSCMNavigatorTrait() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void decorateContext(SCMNavigatorContext<?, ?> context) {
+        ((ASFGitSCMNavigatorContext) context).withSmartHttpRefs(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void decorateBuilder(SCMSourceBuilder<?, ?> builder) {
+        builder.withTrait(new SmartHttpRefsSCMSourceTrait());
+    }
+
+    @Extension
+    public static class DescriptorImpl extends SCMNavigatorTraitDescriptor {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Class<? extends SCMNavigatorContext> getContextClass() {
+            return ASFGitSCMNavigatorContext.class;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Class<? extends SCMNavigator> getNavigatorClass() {
+            return ASFGitSCMNavigator.class;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return Messages.SmartHttpRefsSCMNavigatorTrait_displayName();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import jenkins.plugins.git.AbstractGitSCMSource;
+import jenkins.plugins.git.GitSCMSourceContext;
+import jenkins.scm.api.SCMSource;
+import jenkins.scm.api.SCMSourceOwner;
+import jenkins.scm.api.SCMSourceOwners;
+import jenkins.scm.api.trait.SCMSourceContext;
+import jenkins.scm.api.trait.SCMSourceTrait;
+import jenkins.scm.api.trait.SCMSourceTraitDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A {@link SCMSourceTrait} that lists the branches and tags of a git repository hosted on {@code apache.org} from the
+ * Git smart HTTP ref advertisement instead of scraping GitWeb. The {@link SmartHttpRefsSCMNavigatorTrait} adds this
+ * trait to every source it creates, so the setting is persisted with the source and recorded into {@link RefSnapshot}
+ * whenever the source owner is created, loaded or reconfigured.
+ */
+public class SmartHttpRefsSCMSourceTrait extends SCMSourceTrait {
+
+    @DataBoundConstructor
+    public SmartHttpRefsSCMSourceTrait() {
+    }
+
+    /**
+     * Checks whether the supplied source has this trait.
+     *
+     * @param source the source.
+     * @return {@code true} if the source lists its refs using Git smart HTTP.
+     */
+    static boolean isEnabled(@NonNull SCMSource source) {
+        if (source instanceof AbstractGitSCMSource) {
+            for (SCMSourceTrait trait : ((AbstractGitSCMSource) source).getTraits()) {
+                if (trait instanceof SmartHttpRefsSCMSourceTrait) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the setting of the git sources of the supplied owner into {@link RefSnapshot}.
+     *
+     * @param owner the source owner.
+     */
+    static void record(@NonNull SCMSourceOwner owner) {
+        Map<String, Boolean> remotes = new HashMap<>();
+        for (SCMSource source : owner.getSCMSources()) {
+            if (source instanceof AbstractGitSCMSource) {
+                String remote = ((AbstractGitSCMSource) source).getRemote();
+                // any source of the remote asking for smart HTTP is enough
+                Boolean other = remotes.get(remote);
+                remotes.put(remote, isEnabled(source) || other != null && other);
+            }
+        }
+        for (Map.Entry<String, Boolean> entry : remotes.entrySet()) {
+            RefSnapshot.useSmartHttp(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends SCMSourceTraitDescriptor {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Class<? extends SCMSourceContext> getContextClass() {
+            return GitSCMSourceContext.class;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return Messages.SmartHttpRefsSCMSourceTrait_displayName();
+        }
+    }
+
+    /**
+     * Records the setting of the sources as their owners are loaded, created or reconfigured, so that
+     * {@link RefSnapshot} never has to go looking for it while listing refs.
+     */
+    @Extension
+    public static class ListenerImpl extends ItemListener {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onLoaded() {
+            try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+                for (SCMSourceOwner owner : SCMSourceOwners.all()) {
+                    record(owner);
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onCreated(Item item) {
+            if (item instanceof SCMSourceOwner) {
+                try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+                    record((SCMSourceOwner) item);
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onUpdated(Item item) {
+            onCreated(item);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import jenkins.scm.api.SCMFile;
+import org.apache.commons.lang.StringUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+
+/**
+ * The unpacked contents of a GitWeb {@code a=snapshot} archive. The file contents are stored back to back in a single
+ * temporary file that is memory mapped, the directory listings and the file offsets are held on the heap. The archive
+ * does not carry the object hashes, so the blob hash of each file is computed from its content while unpacking. Paths
+ * that do not fit in a tar header are written by {@code git archive} as entries that only a pax extended header
+ * names, such entries are not unpacked and mark the snapshot as incomplete.
+ */
+final class SnapshotStore implements Closeable {
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(SnapshotStore.class.getName());
+    /**
+     * The maximum unpacked size of a snapshot, larger snapshots are abandoned.
+     */
+    private static /*mostly final*/ long MAX_SIZE =
+            Long.getLong(SnapshotStore.class.getName() + ".MAX_SIZE", 256L * 1024 * 1024);
+    /**
+     * The temporary file holding the file contents.
+     */
+    @NonNull
+    private final File file;
+    /**
+     * The memory mapped file contents, {@code null} once closed.
+     */
+    @CheckForNull
+    private volatile MappedByteBuffer buffer;
+    /**
+     * The offset and length of each file keyed by path.
+     */
+    @NonNull
+    private final Map<String, long[]> files;
+    /**
+     * The directory listings keyed by directory path, the root is keyed by {@code ""}.
+     */
+    @NonNull
+    private final Map<String, Map<String, ASFGitSCMFileSystem.TreeEntry>> trees;
+    /**
+     * {@code true} if every entry of the archive was unpacked.
+     */
+    private final boolean complete;
+
+    /**
+     * Constructor.
+     *
+     * @param file     the temporary file holding the file contents.
+     * @param buffer   the memory mapped file contents.
+     * @param files    the offset and length of each file keyed by path.
+     * @param trees    the directory listings keyed by directory path.
+     * @param complete {@code true} if every entry of the archive was unpacked.
+     */
+    private SnapshotStore(@NonNull File file, @NonNull MappedByteBuffer buffer, @NonNull Map<String, long[]> files,
+                          @NonNull Map<String, Map<String, ASFGitSCMFileSystem.TreeEntry>> trees, boolean complete) {
+        this.file = file;
+        this.buffer = buffer;
+        this.files = files;
+        this.trees = trees;
+        this.complete = complete;
+    }
+
+    /**
+     * Downloads and unpacks a {@code tgz} snapshot archive.
+     *
+     * @param url the URL of the snapshot archive.
+     * @return the store.
+     * @throws IOException          if the archive could not be retrieved or unpacked.
+     * @throws InterruptedException if interrupted while retrieving the archive.
+     */
+    @NonNull
+    static SnapshotStore download(@NonNull String url) throws IOException, InterruptedException {
+        ASFGitSCMFileSystem.preRequestSleep();
+        LOGGER.log(Level.FINE, "Downloading snapshot {0}", url);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        File file = File.createTempFile("asf-gitpubsub-snapshot", ".tmp");
+        boolean success = false;
+        try {
+            connection.setConnectTimeout(ASFGitSCMFileSystem.requestTimeout());
+            connection.setReadTimeout(ASFGitSCMFileSystem.requestTimeout());
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new FileNotFoundException(url);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected HTTP status " + status + " for " + url);
+            }
+            Map<String, long[]> files = new HashMap<>();
+            Map<String, Map<String, ASFGitSCMFileSystem.TreeEntry>> trees = new HashMap<>();
+            trees.put("", new LinkedHashMap<String, ASFGitSCMFileSystem.TreeEntry>());
+            MappedByteBuffer buffer;
+            boolean complete = true;
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-1 is not available", e);
+            }
+            try (InputStream in = connection.getInputStream();
+                 TarInputStream tar = new TarInputStream(new GZIPInputStream(in));
+                 RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                byte[] bytes = new byte[8192];
+                // a single mapping cannot exceed 2GB
+                long maxSize = Math.min(MAX_SIZE, Integer.MAX_VALUE);
+                long offset = 0L;
+                TarEntry entry;
+                while ((entry = tar.getNextEntry()) != null) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    // strip the project-hash/ prefix that GitWeb adds, skipping any pax headers
+                    String name = entry.getName();
+                    int slash = name.indexOf('/');
+                    if (slash == -1) {
+                        if (!"pax_global_header".equals(name)) {
+                            // a pax extended header or an entry whose real path is in the extended header
+                            complete = false;
+                        }
+                        continue;
+                    }
+                    String path = StringUtils.strip(name.substring(slash + 1), "/");
+                    if (path.isEmpty()) {
+                        continue;
+                    }
+                    SCMFile.Type type;
+                    String hash = null;
+                    if (entry.isDirectory()) {
+                        type = SCMFile.Type.DIRECTORY;
+                        if (!trees.containsKey(path)) {
+                            trees.put(path, new LinkedHashMap<String, ASFGitSCMFileSystem.TreeEntry>());
+                        }
+                    } else if (entry.isSymbolicLink()) {
+                        type = SCMFile.Type.LINK;
+                        // the blob of a symbolic link holds the link target
+                        byte[] target = entry.getLinkName().getBytes(StandardCharsets.UTF_8);
+                        digest.update(blobHeader(target.length));
+                        hash = Util.toHexString(digest.digest(target));
+                    } else {
+                        type = SCMFile.Type.REGULAR_FILE;
+                        digest.update(blobHeader(entry.getSize()));
+                        long start = offset;
+                        int count;
+                        while ((count = tar.read(bytes)) != -1) {
+                            digest.update(bytes, 0, count);
+                            offset += count;
+                            if (offset > maxSize) {
+                                throw new IOException("Snapshot " + url + " exceeds limit of " + maxSize + " bytes");
+                            }
+                            channel.write(ByteBuffer.wrap(bytes, 0, count));
+                        }
+                        files.put(path, new long[]{start, offset - start});
+                        hash = Util.toHexString(digest.digest());
+                    }
+                    int lastSlash = path.lastIndexOf('/');
+                    String parent = lastSlash == -1 ? "" : path.substring(0, lastSlash);
+                    Map<String, ASFGitSCMFileSystem.TreeEntry> listing = trees.get(parent);
+                    if (listing == null) {
+                        listing = new LinkedHashMap<>();
+                        trees.put(parent, listing);
+                    }
+                    listing.put(path.substring(lastSlash + 1), new ASFGitSCMFileSystem.TreeEntry(type, hash));
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, offset);
+            }
+            for (Map.Entry<String, Map<String, ASFGitSCMFileSystem.TreeEntry>> tree : trees.entrySet()) {
+                tree.setValue(Collections.unmodifiableMap(tree.getValue()));
+            }
+            success = true;
+            return new SnapshotStore(file, buffer, files, trees, complete);
+        } finally {
+            connection.disconnect();
+            if (!success && !file.delete()) {
+                LOGGER.log(Level.FINE, "Could not delete {0}", file);
+            }
+        }
+    }
+
+    /**
+     * Gets the header that git hashes in front of the content of a blob.
+     *
+     * @param size the size of the content.
+     * @return the header.
+     */
+    @NonNull
+    private static byte[] blobHeader(long size) {
+        return ("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Checks if every entry of the archive was unpacked, only then are the directory listings complete.
+     *
+     * @return {@code true} if every entry of the archive was unpacked.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Checks if the snapshot contains a file.
+     *
+     * @param path the path of the file.
+     * @return {@code true} if the snapshot contains the file.
+     */
+    boolean contains(@NonNull String path) {
+        return files.containsKey(path);
+    }
+
+    /**
+     * Gets the listing of a directory.
+     *
+     * @param path the path of the directory, {@code ""} for the root.
+     * @return the entries keyed by name or {@code null} if the snapshot does not contain the directory.
+     */
+    @CheckForNull
+    Map<String, ASFGitSCMFileSystem.TreeEntry> list(@NonNull String path) {
+        return trees.get(path);
+    }
+
+    /**
+     * Opens a file.
+     *
+     * @param path the path of the file.
+     * @return the content of the file.
+     * @throws IOException if the snapshot does not contain the file or has been closed.
+     */
+    @NonNull
+    InputStream open(@NonNull String path) throws IOException {
+        long[] location = files.get(path);
+        if (location == null) {
+            throw new FileNotFoundException(path);
+        }
+        MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            throw new IOException("Snapshot has been closed");
+        }
+        ByteBuffer content = buffer.duplicate();
+        content.position((int) location[0]);
+        content.limit((int) (location[0] + location[1]));
+        return new ByteBufferInputStream(content.slice());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        if (file.exists() && !file.delete()) {
+            // the mapping may still pin the file on some platforms
+            LOGGER.log(Level.FINE, "Could not delete {0}, will retry on exit", file);
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * An {@link InputStream} over a {@link ByteBuffer}.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        /**
+         * The buffer.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         *
+         * @param buffer the buffer.
+         */
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
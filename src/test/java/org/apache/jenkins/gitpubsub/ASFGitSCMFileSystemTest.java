@@ -20,8 +20,11 @@ import hudson.plugins.git.GitChangeLogParser;
 import hudson.plugins.git.GitChangeSet;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 import jenkins.plugins.git.AbstractGitSCMSource;
 import jenkins.plugins.git.GitSCMTelescope;
 import jenkins.plugins.git.GitTagSCMHead;
@@ -35,10 +38,21 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.anyRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+import static com.github.tomakehurst.wiremock.client.WireMock.exactly;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.lessThanOrExactly;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static org.apache.jenkins.gitpubsub.TimestampMatcher.timestamp;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 public class ASFGitSCMFileSystemTest {
@@ -128,12 +142,37 @@ public class ASFGitSCMFileSystemTest {
         );
     }
 
+    @Test
+    public void given__indexing_run__when__telescope_calls__then__listings_fetched_once() throws Exception {
+        ASFGitSCMFileSystem.TelescopeImpl telescope = new ASFGitSCMFileSystem.TelescopeImpl();
+        String remote = serverRootUrl + "/maven.git";
+        assertThat(telescope.getDefaultTarget(remote, null), is("refs/heads/master"));
+        for (SCMRevision r : telescope.getRevisions(remote, null, EnumSet.allOf(GitSCMTelescope.ReferenceType.class))) {
+            if (r.getHead().getName().equals("lightweight-tag")) {
+                break;
+            }
+        }
+        telescope.getRevision(remote, null, "refs/tags/annotated-tag");
+        telescope.getRevision(remote, null, "refs/tags/lightweight-tag");
+        wire.verify(1, getRequestedFor(urlEqualTo("/repos/asf?p=maven.git;a=heads")));
+        wire.verify(1, getRequestedFor(urlEqualTo("/repos/asf?p=maven.git;a=tags")));
+        wire.verify(0, getRequestedFor(urlEqualTo("/repos/asf?p=maven.git;a=tag;h=refs%2Ftags%2Flightweight-tag")));
+    }
+
     @Test
     public void given__branch__when__lastModified__then__commit_timestamp_returned() throws Exception {
         ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl+"/maven.git", new SCMHead("master"), null);
         assertThat(fs.lastModified(), timestamp("Wed, 15 Nov 2017 02:54:15 +0000"));
     }
 
+    @Test
+    public void given__branch__when__lastModified__then__resolved_commit_reused() throws Exception {
+        ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl+"/maven.git", new SCMHead("master"), null);
+        assertThat(fs.lastModified(), timestamp("Wed, 15 Nov 2017 02:54:15 +0000"));
+        assertThat(fs.getRoot().lastModified(), timestamp("Wed, 15 Nov 2017 02:54:15 +0000"));
+        wire.verify(1, getRequestedFor(urlEqualTo("/repos/asf?p=maven.git;a=commit;h=refs%2Fheads%2Fmaster")));
+    }
+
     @Test
     public void given__commit__when__lastModified__then__commit_timestamp_returned() throws Exception {
         SCMHead head = new SCMHead("master");
@@ -194,4 +233,150 @@ public class ASFGitSCMFileSystemTest {
         assertThat(actual, is(expected));
     }
 
+    @Test
+    public void given__commit_range__when__changesSince_twice__then__commit_pages_fetched_once() throws Exception {
+        SCMHead head = new SCMHead("master");
+        ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", head, new AbstractGitSCMSource
+                .SCMRevisionImpl(head, "114ef6c5a2802e8758e466af92b70f51fd7a2929"));
+        SCMRevision since = new AbstractGitSCMSource.SCMRevisionImpl(head, "748551d0274cc2eebfb2f976536d18277e564584");
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        assertThat(fs.changesSince(since, first), is(true));
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        assertThat(fs.changesSince(since, second), is(true));
+        assertThat(second.toString("UTF-8"), is(first.toString("UTF-8")));
+        wire.verify(lessThanOrExactly(1), getRequestedFor(
+                urlEqualTo("/repos/asf?p=maven.git;a=commit;h=114ef6c5a2802e8758e466af92b70f51fd7a2929")));
+    }
+
+    @Test
+    public void given__healthy_stream__when__reindexed_without_pushes__then__listings_not_fetched() throws Exception {
+        GitSCMTelescope telescope = new ASFGitSCMFileSystem.TelescopeImpl();
+        String remote = serverRootUrl + "/maven.git";
+        IndexWatermark.onStreamData();
+        try {
+            for (int i = 0; i < 2; i++) {
+                RefSnapshot.invalidate(remote);
+                for (SCMRevision r : telescope.getRevisions(remote, null,
+                        EnumSet.allOf(GitSCMTelescope.ReferenceType.class))) {
+                    assertThat(r, notNullValue());
+                }
+            }
+            wire.verify(1, getRequestedFor(urlEqualTo("/repos/asf?p=maven.git;a=heads")));
+            // the push is reported for the remote written differently
+            IndexWatermark.onPush(serverRootUrl.replace("localhost", "LocalHost") + "/maven/");
+            for (int i = 0; i < 2; i++) {
+                RefSnapshot.invalidate(remote);
+                for (SCMRevision r : telescope.getRevisions(remote, null,
+                        EnumSet.allOf(GitSCMTelescope.ReferenceType.class))) {
+                    assertThat(r, notNullValue());
+                }
+            }
+            // a listing taken within the grace period after a push is not trusted
+            wire.verify(3, getRequestedFor(urlEqualTo("/repos/asf?p=maven.git;a=heads")));
+        } finally {
+            IndexWatermark.onStreamBroken();
+        }
+    }
+
+    @Test
+    public void given__prewarmed_refs__when__indexed__then__listings_fetched_once() throws Exception {
+        String remote = serverRootUrl + "/maven.git";
+        RefPrewarmer.prewarm(remote);
+        wire.verify(1, getRequestedFor(urlEqualTo("/repos/asf?p=maven.git;a=heads")));
+        wire.verify(1, getRequestedFor(urlEqualTo("/repos/asf?p=maven.git;a=tags")));
+        wire.resetRequests();
+        for (SCMRevision r : new ASFGitSCMFileSystem.TelescopeImpl()
+                .getRevisions(remote, null, EnumSet.allOf(GitSCMTelescope.ReferenceType.class))) {
+            assertThat(r, notNullValue());
+            if (r.getHead() instanceof TagSCMHead) {
+                assertThat(((TagSCMHead) r.getHead()).getTimestamp(), greaterThan(0L));
+            }
+        }
+        // the listings, tag pages and commit pages were all resolved by the prewarm
+        wire.verify(exactly(0), anyRequestedFor(anyUrl()));
+    }
+
+    @Test
+    public void given__indexed_remote__when__isUnchanged__then__pushes_seen() throws Exception {
+        String remote = serverRootUrl + "/maven.git";
+        Set<GitSCMTelescope.ReferenceType> types = EnumSet.allOf(GitSCMTelescope.ReferenceType.class);
+        IndexWatermark.onStreamData();
+        try {
+            Iterable<SCMRevision> listing = new ASFGitSCMFileSystem.TelescopeImpl().getRevisions(remote, null, types);
+            // the listing is only remembered once every revision has been resolved
+            assertThat(IndexWatermark.isUnchanged(remote, types), is(false));
+            List<SCMRevision> revisions = new ArrayList<>();
+            for (SCMRevision r : listing) {
+                revisions.add(r);
+            }
+            for (int i = 0; i < 2; i++) {
+                assertThat(IndexWatermark.isUnchanged(remote, types), is(true));
+            }
+            assertThat(IndexWatermark.unchanged(remote, types), contains(revisions.toArray()));
+            IndexWatermark.onPush(remote);
+            assertThat(IndexWatermark.isUnchanged(remote, types), is(false));
+            assertThat(IndexWatermark.unchanged(remote, types), nullValue());
+        } finally {
+            IndexWatermark.onStreamBroken();
+        }
+    }
+
+    @Test
+    public void given__remote_spellings__when__canonical__then__same_key() throws Exception {
+        String expected = "https://gitbox.apache.org/repos/asf/maven.git";
+        assertThat(IndexWatermark.canonical("https://gitbox.apache.org/repos/asf/maven.git"), is(expected));
+        assertThat(IndexWatermark.canonical("https://gitbox.apache.org/repos/asf/maven"), is(expected));
+        assertThat(IndexWatermark.canonical("https://gitbox.apache.org/repos/asf/maven.git/"), is(expected));
+        assertThat(IndexWatermark.canonical("HTTPS://GitBox.Apache.org/repos/asf/mave%6e.git"), is(expected));
+        assertThat(IndexWatermark.canonical("git@gitbox.apache.org:maven.git"), nullValue());
+    }
+
+    @Test
+    public void given__pushed_branch__when__getRevision__then__no_requests() throws Exception {
+        String remote = serverRootUrl + "/maven.git";
+        RefState.onPush(remote, "refs/heads/pushed", "F5F76C70E1828A7E6C6267FC4BC53ABC35C19CE7");
+        RefState.onPush(remote, "refs/heads/removed", null);
+        GitSCMTelescope telescope = new ASFGitSCMFileSystem.TelescopeImpl();
+        assertThat(telescope.getRevision(remote, null, "refs/heads/pushed"),
+                is((SCMRevision) new AbstractGitSCMSource.SCMRevisionImpl(new SCMHead("pushed"),
+                        "f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7")));
+        assertThat(telescope.getRevision(remote, null, "refs/heads/removed"), nullValue());
+        wire.verify(0, anyRequestedFor(anyUrl()));
+    }
+
+    @Test
+    public void given__consecutive_builds__when__changesSince__then__shortlog_pages_fetched_once() throws Exception {
+        // 862c84a5 and 529e8a62 are merges, so the parents cannot be walked and the short log has to be used
+        SCMHead head = new SCMHead("master");
+        SCMRevision since = new AbstractGitSCMSource.SCMRevisionImpl(head, "0b9a30f350f159a190e87c78e520ba7a7ae0642b");
+        List<String> logs = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", head,
+                    new AbstractGitSCMSource.SCMRevisionImpl(head, "114ef6c5a2802e8758e466af92b70f51fd7a2929"));
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            assertThat(fs.changesSince(since, stream), is(true));
+            logs.add(stream.toString("UTF-8"));
+            if (i == 0) {
+                wire.verify(exactly(1), getRequestedFor(
+                        urlEqualTo("/repos/asf?p=maven.git;a=shortlog;h=114ef6c5a2802e8758e466af92b70f51fd7a2929")));
+                wire.verify(exactly(0), getRequestedFor(urlMatching(".*a=shortlog;.*;pg=.*")));
+                wire.resetRequests();
+            }
+        }
+        assertThat(logs.get(1), is(logs.get(0)));
+        List<String> hashes = new ArrayList<>();
+        for (GitChangeSet change : new GitChangeLogParser(true).parse(
+                new ByteArrayInputStream(logs.get(0).getBytes(StandardCharsets.UTF_8)))) {
+            hashes.add(change.getCommitId());
+        }
+        assertThat(hashes, contains(
+                "114ef6c5a2802e8758e466af92b70f51fd7a2929",
+                "862c84a52b9ae9b88bc9a6cfa256852532d02a9a",
+                "e0da20a1f801aeda0cd74495834c637c3a207478",
+                "748551d0274cc2eebfb2f976536d18277e564584",
+                "529e8a62049d009a800cbf0b37ca348abaf9022d"));
+        // the second build is answered from the short log and commit caches
+        wire.verify(exactly(0), anyRequestedFor(anyUrl()));
+    }
+
 }
@@ -16,6 +16,7 @@
 package org.apache.jenkins.gitpubsub;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.TreeSet;
 import jenkins.plugins.git.AbstractGitSCMSource;
@@ -27,10 +28,18 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static org.apache.jenkins.gitpubsub.TimestampMatcher.timestamp;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertThat;
 
 public class ASFGitSCMFileTest {
@@ -119,6 +128,32 @@ public class ASFGitSCMFileTest {
         assertThat(fs.getRoot().child("maven-settings").child("pom.xml").getType(), is(SCMFile.Type.REGULAR_FILE));
     }
 
+    @Test
+    public void given__listed_directory__when__type__then__tree_fetched_once() throws Exception {
+        ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
+        fs.getRoot().children();
+        SCMFile jenkinsfile = fs.getRoot().child("Jenkinsfile");
+        assertThat(jenkinsfile.isFile(), is(true));
+        assertThat(jenkinsfile.getType(), is(SCMFile.Type.REGULAR_FILE));
+        assertThat(fs.getRoot().child("maven-settings").isDirectory(), is(true));
+        assertThat(fs.getRoot().child("missing").exists(), is(false));
+        wire.verify(1, getRequestedFor(
+                urlEqualTo("/repos/asf?p=maven.git;a=tree;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7")));
+    }
+
+    @Test
+    public void given__prefetched_directories__when__probed__then__answered_from_memory() throws Exception {
+        ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
+        fs.prefetch(Arrays.asList("", "maven-settings/", "does-not-exist"), 0);
+        assertThat(fs.getRoot().child("pom.xml").isFile(), is(true));
+        assertThat(fs.getRoot().child("maven-settings").child("pom.xml").isFile(), is(true));
+        fs.getRoot().child("maven-settings").children();
+        wire.verify(1, getRequestedFor(
+                urlEqualTo("/repos/asf?p=maven.git;a=tree;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7")));
+        wire.verify(1, getRequestedFor(urlEqualTo(
+                "/repos/asf?p=maven.git;a=tree;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7;f=maven-settings")));
+    }
+
     @Test
     public void given__child_file__when__content__then__contents_returned() throws Exception {
         ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
@@ -139,6 +174,77 @@ public class ASFGitSCMFileTest {
                 + ".java-version\n"));
     }
 
+    @Test
+    public void given__small_file__when__content_read_twice__then__blob_fetched_once() throws Exception {
+        ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
+        String first = fs.getRoot().child(".gitignore").contentAsString();
+        fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
+        assertThat(fs.getRoot().child(".gitignore").contentAsString(), is(first));
+        wire.verify(1, getRequestedFor(urlEqualTo(
+                "/repos/asf?p=maven.git;a=blob_plain;f=.gitignore;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7")));
+        assertThat(BlobReader.openConnections(), is(0));
+    }
+
+    @Test
+    public void given__listed_file__when__getObjectHash__then__blob_hash_returned() throws Exception {
+        ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
+        ASFGitSCMFile gitignore = (ASFGitSCMFile) fs.getRoot().child(".gitignore");
+        assertThat(gitignore.getObjectHash(), is("f79c9285cd4ca44049fa51af32c99006d6d75fa6"));
+        ASFGitSCMFile settings = (ASFGitSCMFile) fs.getRoot().child("maven-settings");
+        assertThat(settings.getObjectHash(), is("bd1a43f8ede4aab0d7b64edb075a08ca34a34014"));
+        assertThat(gitignore.contentAsString(), startsWith("target/\n"));
+    }
+
+    @Test
+    public void given__snapshot_threshold__when__content__then__served_from_snapshot() throws Exception {
+        int threshold = ASFGitSCMFileSystem.SNAPSHOT_THRESHOLD;
+        ASFGitSCMFileSystem.SNAPSHOT_THRESHOLD = 1;
+        try (ASFGitSCMFileSystem fs =
+                     new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null)) {
+            String gitignore = fs.getRoot().child(".gitignore").contentAsString();
+            assertThat(fs.getRoot().child("maven-settings").child("pom.xml").contentAsString(),
+                    containsString("<artifactId>maven-settings</artifactId>"));
+            Set<String> names = new TreeSet<>();
+            for (SCMFile f : fs.getRoot().child("maven-settings").children()) {
+                names.add(f.getName());
+            }
+            assertThat(names, containsInAnyOrder("pom.xml"));
+            // the blob hash is computed while unpacking
+            for (SCMFile f : fs.getRoot().child("maven-settings").children()) {
+                assertThat(((ASFGitSCMFile) f).getObjectHash(), is("789872175ebba7e08b30765ccaced4076bdf79d0"));
+            }
+            assertThat(fs.getRoot().child(".gitignore").contentAsString(), is(gitignore));
+        } finally {
+            ASFGitSCMFileSystem.SNAPSHOT_THRESHOLD = threshold;
+        }
+        wire.verify(1, getRequestedFor(urlEqualTo(
+                "/repos/asf?p=maven.git;a=snapshot;h=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7;sf=tgz")));
+        wire.verify(1, getRequestedFor(urlEqualTo(
+                "/repos/asf?p=maven.git;a=blob_plain;f=.gitignore;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7")));
+        wire.verify(0, getRequestedFor(urlEqualTo(
+                "/repos/asf?p=maven.git;a=tree;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7;f=maven-settings")));
+    }
+
+    @Test
+    public void given__file_missing_from_snapshot__when__content__then__blob_read() throws Exception {
+        wire.stubFor(get(urlEqualTo(
+                "/repos/asf?p=maven.git;a=blob_plain;f=README.md;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7"))
+                .willReturn(aResponse().withStatus(200).withBody("Apache Maven\n")));
+        int threshold = ASFGitSCMFileSystem.SNAPSHOT_THRESHOLD;
+        ASFGitSCMFileSystem.SNAPSHOT_THRESHOLD = 1;
+        try (ASFGitSCMFileSystem fs =
+                     new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null)) {
+            fs.getRoot().child(".gitignore").contentAsString();
+            assertThat(fs.getRoot().child("README.md").contentAsString(), is("Apache Maven\n"));
+        } finally {
+            ASFGitSCMFileSystem.SNAPSHOT_THRESHOLD = threshold;
+        }
+        wire.verify(1, getRequestedFor(urlEqualTo(
+                "/repos/asf?p=maven.git;a=snapshot;h=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7;sf=tgz")));
+        wire.verify(1, getRequestedFor(urlEqualTo(
+                "/repos/asf?p=maven.git;a=blob_plain;f=README.md;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7")));
+    }
+
     @Test
     public void given__branch_root__when__lastModified__then__commit_timestamp_returned() throws Exception {
         ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
@@ -180,4 +286,37 @@ public class ASFGitSCMFileTest {
         assertThat(fs.getRoot().child("src").lastModified(), timestamp("Sat, 18 Feb 2017 14:15:18 +0000"));
     }
 
+    @Test
+    public void given__file__when__lastModified_twice__then__history_fetched_once() throws Exception {
+        ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
+        assertThat(fs.getRoot().child("Jenkinsfile").lastModified(), timestamp("Tue, 29 Aug 2017 20:47:50 +0000"));
+        fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
+        assertThat(fs.getRoot().child("Jenkinsfile").lastModified(), timestamp("Tue, 29 Aug 2017 20:47:50 +0000"));
+        wire.verify(1, getRequestedFor(urlEqualTo(
+                "/repos/asf?p=maven.git;a=history;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7;f=Jenkinsfile")));
+    }
+
+    @Test
+    public void given__prefetched_push__when__build_reads__then__no_requests() throws Exception {
+        String hash = "f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7";
+        PushPrefetcher.prefetch(serverRootUrl + "/maven.git", "refs/heads/master", hash, ".gitignore");
+        wire.resetRequests();
+        SCMHead head = new SCMHead("master");
+        ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", head,
+                new AbstractGitSCMSource.SCMRevisionImpl(head, hash));
+        assertThat(fs.lastModified(), timestamp("Wed, 15 Nov 2017 02:54:15 +0000"));
+        assertThat(fs.getRoot().child(".gitignore").contentAsString(), startsWith("target/\n"));
+        wire.verify(0, anyRequestedFor(anyUrl()));
+    }
+
+    @Test
+    public void given__missing_directory__when__probed_twice__then__tree_fetched_once() throws Exception {
+        ASFGitSCMFileSystem fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
+        assertThat(fs.getRoot().child("does-not-exist/Jenkinsfile").exists(), is(false));
+        fs = new ASFGitSCMFileSystem(serverRootUrl + "/maven.git", new SCMHead("master"), null);
+        assertThat(fs.getRoot().child("does-not-exist/Jenkinsfile").exists(), is(false));
+        wire.verify(1, getRequestedFor(urlEqualTo(
+                "/repos/asf?p=maven.git;a=tree;hb=f5f76c70e1828a7e6c6267fc4bc53abc35c19ce7;f=does-not-exist")));
+    }
+
 }
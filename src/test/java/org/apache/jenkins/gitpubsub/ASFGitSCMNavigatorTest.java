@@ -25,15 +25,23 @@ import hudson.model.Job;
 import hudson.model.TaskListener;
 import hudson.model.TopLevelItem;
 import hudson.model.TopLevelItemDescriptor;
-import hudson.util.LogTaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import jenkins.scm.api.SCMSource;
 import jenkins.scm.api.SCMSourceCriteria;
 import jenkins.scm.api.SCMSourceObserver;
@@ -45,7 +53,15 @@ import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.TestExtension;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.exactly;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
@@ -78,9 +94,203 @@ public class ASFGitSCMNavigatorTest {
         assertThat(probe.getObserved(), not(hasItem(is("maven"))));
     }
 
+    @Test
+    public void given__instance_with_project_filter__when__visitSources__then__only_project_repos_found()
+            throws Exception {
+        ASFGitSCMNavigator instance =
+                new ASFGitSCMNavigator("http://localhost:" + wire.port() + "/repos/asf");
+        instance.setTraits(Collections.singletonList(new ASFProjectFilterSCMNavigatorTrait("kaf*", "")));
+        CapturingObserver probe = new CapturingObserver(j.createProject(MockSCMSourceOwner.class));
+        instance.visitSources(probe);
+        assertThat(probe.getObserved(), containsInAnyOrder("kafka", "kafka-site"));
+    }
+
+    @Test
+    public void given__instance_with_project_filter__when__visitSources__then__summary_counts_logged()
+            throws Exception {
+        ASFGitSCMNavigator instance =
+                new ASFGitSCMNavigator("http://localhost:" + wire.port() + "/repos/asf");
+        instance.setTraits(Collections.singletonList(new ASFProjectFilterSCMNavigatorTrait("kaf*", "")));
+        CapturingObserver probe = new CapturingObserver(j.createProject(MockSCMSourceOwner.class));
+        instance.visitSources(probe);
+        String log = probe.getLog();
+        assertThat(log, containsString(String.format("%n  2 repositories were processed%n")));
+        assertThat(log, containsString(String.format("    %-40s %8d%n", "Proposed", 2)));
+        assertThat(log, containsString(String.format("    %-40s %8d%n", "Ignored", 0)));
+        // the catalogue fixture has 1446 repositories
+        assertThat(log, containsString(String.format("    %-40s %8d%n", "Skipped, other or retired project", 1444)));
+        assertThat(log, containsString(String.format("    %-40s %8d%n", "Skipped, inactive", 0)));
+        assertThat(log, containsString("Total time"));
+        // the compact format only lists the proposed repositories
+        assertThat(log, not(containsString("Checking repository")));
+    }
+
+    @Test
+    public void given__instance_with_activity_filter__when__visitSources__then__dormant_repos_skipped()
+            throws Exception {
+        ASFGitSCMNavigator instance =
+                new ASFGitSCMNavigator("http://localhost:" + wire.port() + "/repos/asf");
+        // the catalogue fixture was recorded on 2019-02-28
+        long days = TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - 1551390001000L);
+        instance.setTraits(Collections.singletonList(new ASFActivityFilterSCMNavigatorTrait((int) days + 1, true)));
+        CapturingObserver probe = new CapturingObserver(j.createProject(MockSCMSourceOwner.class));
+        instance.visitSources(probe);
+        assertThat(probe.getObserved(), hasItem(is("kafka")));
+        assertThat(probe.getObserved(), not(hasItem(is("kafka-site"))));
+        assertThat(probe.getObserved(), not(hasItem(is("attic-lucy"))));
+    }
+
+    @Test
+    public void given__parallel_read_ahead__when__visitSources__then__all_repos_observed_in_catalogue_order()
+            throws Exception {
+        String server = "http://localhost:" + wire.port() + "/repos/asf";
+        final List<String> catalogue = new ArrayList<>();
+        RepositoryCatalogue.fetch(RepositoryCatalogue.urlOf(server), new RepositoryCatalogue.Visitor() {
+            @Override
+            public boolean visit(@NonNull RepositoryCatalogue.Repository repository) {
+                catalogue.add(repository.getName());
+                return false;
+            }
+        });
+        int parallelism = ScanReadAhead.PARALLELISM;
+        ScanReadAhead.PARALLELISM = 2;
+        try {
+            CapturingObserver probe = new CapturingObserver(j.createProject(MockSCMSourceOwner.class));
+            new ASFGitSCMNavigator(server).visitSources(probe);
+            assertThat(probe.getOrder(), is(catalogue));
+        } finally {
+            ScanReadAhead.PARALLELISM = parallelism;
+        }
+    }
+
+    @Test
+    public void given__push_activity__when__mostActive__then__busiest_repos_first() throws Exception {
+        String server = "http://localhost:" + wire.port() + "/repos/asf";
+        PushActivity.onPush(ASFGitSCMSourceBuilder.remoteOf(server, "maven"));
+        PushActivity.onPush(ASFGitSCMSourceBuilder.remoteOf(server, "kafka"));
+        PushActivity.onPush(ASFGitSCMSourceBuilder.remoteOf(server, "kafka"));
+        assertThat(PushActivity.mostActive(server, Arrays.asList("ignite", "maven", "kafka"), 10),
+                contains("kafka", "maven"));
+        assertThat(PushActivity.mostActive(server, Arrays.asList("ignite", "maven", "kafka"), 1), contains("kafka"));
+    }
+
+    @Test
+    public void given__active_repo_gone_from_catalogue__when__visitSources__then__not_proposed() throws Exception {
+        String server = "http://localhost:" + wire.port() + "/repos/asf";
+        CatalogueSnapshot.update(server, new CatalogueSnapshot.Builder()
+                .add("maven", "maven")
+                .add("maven", "maven-retired")
+                .build());
+        PushActivity.onPush(ASFGitSCMSourceBuilder.remoteOf(server, "maven-retired"));
+        PushActivity.onPush(ASFGitSCMSourceBuilder.remoteOf(server, "maven"));
+        CapturingObserver probe = new CapturingObserver(j.createProject(MockSCMSourceOwner.class));
+        new ASFGitSCMNavigator(server).visitSources(probe);
+        assertThat(probe.getObserved(), hasItem(is("maven")));
+        assertThat(probe.getObserved(), not(hasItem(is("maven-retired"))));
+    }
+
+    @Test
+    public void given__catalogue__when__visitor_stops__then__remaining_entries_not_visited() throws Exception {
+        String url = "http://localhost:" + wire.port() + "/repositories.json";
+        RepositoryCatalogue.invalidate(url);
+        final List<RepositoryCatalogue.Repository> visited = new ArrayList<>();
+        assertThat(RepositoryCatalogue.fetch(url,
+                new RepositoryCatalogue.Visitor() {
+                    @Override
+                    public boolean visit(@NonNull RepositoryCatalogue.Repository repository) {
+                        visited.add(repository);
+                        return true;
+                    }
+                }), is(true));
+        assertThat(visited.size(), is(1));
+        assertThat(visited.get(0).getProject(), is("ignite"));
+        assertThat(visited.get(0).getName(), is("ignite"));
+        assertThat(visited.get(0).getLastUpdated(), is(1551376259000L));
+
+        // the rest of the catalogue was still parsed into the cached copy
+        visited.clear();
+        assertThat(RepositoryCatalogue.fetch(url, new RepositoryCatalogue.Visitor() {
+            @Override
+            public boolean visit(@NonNull RepositoryCatalogue.Repository repository) {
+                visited.add(repository);
+                return false;
+            }
+        }), is(false));
+        assertThat(visited.size(), greaterThan(1));
+        assertThat(visited.get(0).getName(), is("ignite"));
+        wire.verify(exactly(1), getRequestedFor(urlEqualTo("/repositories.json")));
+    }
+
+    @Test
+    public void given__two_navigators__when__visitSources__then__catalogue_fetched_once() throws Exception {
+        RepositoryCatalogue.invalidate("http://localhost:" + wire.port() + "/repositories.json");
+        for (int i = 0; i < 2; i++) {
+            ASFGitSCMNavigator instance =
+                    new ASFGitSCMNavigator("http://localhost:" + wire.port() + "/repos/asf");
+            CapturingObserver probe = new CapturingObserver(j.createProject(MockSCMSourceOwner.class));
+            instance.visitSources(probe);
+            assertThat(probe.getObserved(), hasItem(is("maven")));
+        }
+        wire.verify(exactly(1), getRequestedFor(urlEqualTo("/repositories.json")));
+    }
+
+    @Test
+    public void given__concurrent_navigators__when__visitSources__then__catalogue_fetched_once() throws Exception {
+        RepositoryCatalogue.invalidate("http://localhost:" + wire.port() + "/repositories.json");
+        final int count = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<String>>> scans = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                final ASFGitSCMNavigator instance =
+                        new ASFGitSCMNavigator("http://localhost:" + wire.port() + "/repos/asf");
+                final CapturingObserver probe = new CapturingObserver(j.createProject(MockSCMSourceOwner.class));
+                scans.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        start.await();
+                        instance.visitSources(probe);
+                        return probe.getOrder();
+                    }
+                }));
+            }
+            start.countDown();
+            List<String> first = scans.get(0).get(60, TimeUnit.SECONDS);
+            assertThat(first, hasItem(is("maven")));
+            for (Future<List<String>> scan : scans) {
+                assertThat(scan.get(60, TimeUnit.SECONDS), is(first));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        wire.verify(exactly(1), getRequestedFor(urlEqualTo("/repositories.json")));
+    }
+
+    @Test
+    public void given__changed_catalogue__when__compared__then__added_and_removed_found() throws Exception {
+        CatalogueSnapshot previous = new CatalogueSnapshot.Builder()
+                .add("maven", "maven")
+                .add("maven", "maven-site")
+                .build();
+        CatalogueSnapshot current = new CatalogueSnapshot.Builder()
+                .add("maven", "maven")
+                .add("maven", "maven-wagon")
+                .build();
+        assertThat(current.without(previous), contains("maven-wagon"));
+        assertThat(previous.without(current), contains("maven-site"));
+        assertThat(current.without(new CatalogueSnapshot.Builder()
+                .add("maven", "maven-wagon")
+                .add("maven", "maven")
+                .build()), empty());
+    }
+
     private static class CapturingObserver extends SCMSourceObserver {
         private final SCMSourceOwner context;
         private final Set<String> observed = new TreeSet<>();
+        private final List<String> order = new ArrayList<>();
+        private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        private final TaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
 
         private CapturingObserver(SCMSourceOwner context) {
             this.context = context;
@@ -90,6 +300,14 @@ public class ASFGitSCMNavigatorTest {
             return observed;
         }
 
+        public List<String> getOrder() {
+            return order;
+        }
+
+        public String getLog() {
+            return new String(log.toByteArray(), StandardCharsets.UTF_8);
+        }
+
         @NonNull
         @Override
         public SCMSourceOwner getContext() {
@@ -99,7 +317,7 @@ public class ASFGitSCMNavigatorTest {
         @NonNull
         @Override
         public TaskListener getListener() {
-            return new LogTaskListener(Logger.getAnonymousLogger(), Level.INFO);
+            return listener;
         }
 
         @NonNull
@@ -107,6 +325,7 @@ public class ASFGitSCMNavigatorTest {
         public ProjectObserver observe(@NonNull String projectName)
                 throws IllegalArgumentException, IOException, InterruptedException {
             observed.add(projectName);
+            order.add(projectName);
             return new NoOpProjectObserver();
         }
 
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.plugins.git.GitSCMSource;
+import jenkins.scm.api.SCMEventListener;
+import jenkins.scm.api.SCMSourceEvent;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static jenkins.scm.api.SCMEvent.Type.CREATED;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+public class CataloguePollTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+    @Rule
+    public WireMockRule wire = new WireMockRule(wireMockConfig().dynamicPort());
+    private String server;
+
+    @Before
+    public void clearEvents() {
+        server = "http://localhost:" + wire.port() + "/repos/asf";
+        synchronized (CapturingListener.EVENTS) {
+            CapturingListener.EVENTS.clear();
+        }
+    }
+
+    private void serveCatalogue(String... repos) {
+        StringBuilder json = new StringBuilder("{\"updated\": 1551390001, \"projects\": {\"maven\": "
+                + "{\"domain\": \"maven\", \"repositories\": {");
+        for (int i = 0; i < repos.length; i++) {
+            json.append(i == 0 ? "" : ", ").append('"').append(repos[i]).append("\": ")
+                    .append("{\"last_update_int\": 1551376259, \"description\": \"Apache Maven\", \"commits\": 1}");
+        }
+        json.append("}}}}");
+        wire.stubFor(get(urlEqualTo("/repositories.json")).atPriority(1).willReturn(okJson(json.toString())));
+        RepositoryCatalogue.invalidate(RepositoryCatalogue.urlOf(server));
+    }
+
+    private List<String> awaitEvents(int count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000L;
+        synchronized (CapturingListener.EVENTS) {
+            while (CapturingListener.EVENTS.size() < count && System.currentTimeMillis() < timeout) {
+                CapturingListener.EVENTS.wait(50L);
+            }
+            return new ArrayList<>(CapturingListener.EVENTS);
+        }
+    }
+
+    @Test
+    public void given__changed_catalogue__when__poll__then__created_and_removed_fired() throws Exception {
+        serveCatalogue("maven", "maven-site");
+        CataloguePoll.poll(server);
+        serveCatalogue("maven", "maven-resolver");
+        CataloguePoll.poll(server);
+        assertThat(awaitEvents(2), containsInAnyOrder("CREATED maven-resolver", "REMOVED maven-site"));
+    }
+
+    @Test
+    public void given__unchanged_catalogue__when__poll__then__no_events() throws Exception {
+        serveCatalogue("maven", "maven-site");
+        CataloguePoll.poll(server);
+        serveCatalogue("maven", "maven-site");
+        CataloguePoll.poll(server);
+        // a later change shows that the listener does receive the events
+        serveCatalogue("maven", "maven-site", "maven-resolver");
+        CataloguePoll.poll(server);
+        assertThat(awaitEvents(1), containsInAnyOrder("CREATED maven-resolver"));
+    }
+
+    @Test
+    public void given__polled_server__when__restarted__then__server_and_snapshot_restored() throws Exception {
+        serveCatalogue("maven", "maven-site");
+        CataloguePoll.poll(server);
+        CatalogueSnapshot.invalidate(server);
+        assertThat(CatalogueSnapshot.servers(), hasItem(server));
+        CatalogueSnapshot snapshot = CatalogueSnapshot.latest(server);
+        assertThat(snapshot, notNullValue());
+        assertThat(snapshot.getRepositories(), containsInAnyOrder("maven", "maven-site"));
+        // the restored snapshot is the base for the next poll
+        CatalogueSnapshot.invalidate(server);
+        serveCatalogue("maven");
+        CataloguePoll.poll(server);
+        assertThat(awaitEvents(1), containsInAnyOrder("REMOVED maven-site"));
+    }
+
+    @Test
+    public void given__catalogue_event__when__isMatch__then__only_same_server_matches() throws Exception {
+        SCMSourceEvent<String> event = new CataloguePoll.CatalogueEvent(CREATED, server, "maven");
+        assertThat(event.getSourceName(), is("maven"));
+        assertThat(event.isMatch(new ASFGitSCMNavigator(server)), is(true));
+        assertThat(event.isMatch(new ASFGitSCMNavigator(ASFGitSCMNavigator.GIT_BOX)), is(false));
+        assertThat(event.isMatch(new GitSCMSource(server + "/maven.git")), is(true));
+        assertThat(event.isMatch(new GitSCMSource(server + "/maven-site.git")), is(false));
+        assertThat(event.isMatch(new GitSCMSource(ASFGitSCMNavigator.GIT_BOX + "/maven.git")), is(false));
+    }
+
+    @TestExtension
+    public static class CapturingListener extends SCMEventListener {
+        static final List<String> EVENTS = new ArrayList<>();
+
+        @Override
+        public void onSCMSourceEvent(SCMSourceEvent<?> event) {
+            if (event instanceof CataloguePoll.CatalogueEvent) {
+                synchronized (EVENTS) {
+                    EVENTS.add(event.getType() + " " + event.getSourceName());
+                    EVENTS.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License,Version2.0(the"License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,software
+ * distributed under the License is distributed on an"AS IS"BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jenkins.gitpubsub;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.servlet.http.HttpServletRequest;
+import jenkins.plugins.git.AbstractGitSCMSource;
+import jenkins.scm.api.SCMRevision;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.http.server.GitServlet;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.resolver.RepositoryResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SmartHttpRefListingTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private Server server;
+    private String serverRootUrl;
+    private Git git;
+    private RevCommit initial;
+    private RevCommit feature;
+
+    @Before
+    public void startGitServer() throws Exception {
+        File dir = tmp.newFolder("maven");
+        git = Git.init().setDirectory(dir).call();
+        Files.write(new File(dir, "Jenkinsfile").toPath(), "buildPlugin()\n".getBytes(StandardCharsets.UTF_8));
+        git.add().addFilepattern("Jenkinsfile").call();
+        initial = git.commit().setMessage("Initial commit").call();
+        git.tag().setName("lightweight-tag").setAnnotated(false).call();
+        git.tag().setName("annotated-tag").setMessage("Temporary").setAnnotated(true).call();
+        git.checkout().setCreateBranch(true).setName("feature").call();
+        Files.write(new File(dir, "README.md").toPath(), "# Maven\n".getBytes(StandardCharsets.UTF_8));
+        git.add().addFilepattern("README.md").call();
+        feature = git.commit().setMessage("Add readme").call();
+        git.checkout().setName("master").call();
+
+        GitServlet servlet = new GitServlet();
+        servlet.setRepositoryResolver(new RepositoryResolver<HttpServletRequest>() {
+            @Override
+            public Repository open(HttpServletRequest req, String name) throws RepositoryNotFoundException {
+                if (!"maven.git".equals(name)) {
+                    throw new RepositoryNotFoundException(name);
+                }
+                Repository repository = git.getRepository();
+                repository.incrementOpen();
+                return repository;
+            }
+        });
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/repos/asf");
+        context.addServlet(new ServletHolder(servlet), "/*");
+        server.setHandler(context);
+        server.start();
+        serverRootUrl = "http://localhost:" + connector.getLocalPort() + "/repos/asf";
+        ASFGitSCMFileSystem.GIT_WEB_HOSTS.add(serverRootUrl);
+    }
+
+    @After
+    public void stopGitServer() throws Exception {
+        ASFGitSCMFileSystem.GIT_WEB_HOSTS.remove(serverRootUrl);
+        RefSnapshot.useSmartHttp(serverRootUrl + "/maven.git", false);
+        if (server != null) {
+            server.stop();
+        }
+        if (git != null) {
+            git.close();
+        }
+    }
+
+    @Test
+    public void given__smart_http_server__when__fetch__then__heads_and_tags_listed() throws Exception {
+        RefSnapshot snapshot = SmartHttpRefListing.fetch(serverRootUrl + "/maven.git", "HEAD", "refs/heads/",
+                "refs/tags/");
+        assertThat(snapshot.getHeads(), containsInAnyOrder("master", "feature"));
+        assertThat(snapshot.getHeadHash("master"), is(initial.name()));
+        assertThat(snapshot.getHeadHash("feature"), is(feature.name()));
+        assertThat(snapshot.getCurrentHead(), is("master"));
+        assertThat(snapshot.getTags().keySet(), containsInAnyOrder("annotated-tag", "lightweight-tag"));
+        RefSnapshot.Tag lightweight = snapshot.getTag("lightweight-tag");
+        assertThat(lightweight.isAnnotated(), is(false));
+        assertThat(lightweight.getCommitHash(), is(initial.name()));
+        assertThat(lightweight.getObjectHash(), nullValue());
+        RefSnapshot.Tag annotated = snapshot.getTag("annotated-tag");
+        assertThat(annotated.isAnnotated(), is(true));
+        assertThat(annotated.getCommitHash(), is(initial.name()));
+        assertThat(annotated.getObjectHash(),
+                is(git.getRepository().exactRef("refs/tags/annotated-tag").getObjectId().name()));
+    }
+
+    @Test
+    public void given__ref_prefix__when__fetch__then__only_matching_refs_listed() throws Exception {
+        RefSnapshot snapshot = SmartHttpRefListing.fetch(serverRootUrl + "/maven.git", "refs/heads/");
+        assertThat(snapshot.getHeads(), containsInAnyOrder("master", "feature"));
+        assertThat(snapshot.getTags().isEmpty(), is(true));
+    }
+
+    @Test
+    public void given__smart_http_remote__when__telescope__then__no_gitweb_requests() throws Exception {
+        String remote = serverRootUrl + "/maven.git";
+        RefSnapshot.useSmartHttp(remote, true);
+        ASFGitSCMFileSystem.TelescopeImpl telescope = new ASFGitSCMFileSystem.TelescopeImpl();
+        assertThat(telescope.getDefaultTarget(remote, null), is("refs/heads/master"));
+        SCMRevision revision = telescope.getRevision(remote, null, "refs/heads/feature");
+        assertThat(revision, instanceOf(AbstractGitSCMSource.SCMRevisionImpl.class));
+        assertThat(((AbstractGitSCMSource.SCMRevisionImpl) revision).getHash(), is(feature.name()));
+    }
+
+    @Test
+    public void given__v2_ls_refs_response__when__parse__then__peeled_and_symrefs_recorded() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SmartHttpRefListing.writePacket(out, initial.name() + " HEAD symref-target:refs/heads/master\n");
+        SmartHttpRefListing.writePacket(out, initial.name() + " refs/heads/master\n");
+        SmartHttpRefListing.writePacket(out, feature.name() + " refs/tags/v1 peeled:" + initial.name() + "\n");
+        out.write("0000".getBytes(StandardCharsets.US_ASCII));
+        SmartHttpRefListing.Advertisement advertisement =
+                new SmartHttpRefListing.Advertisement("HEAD", "refs/heads/", "refs/tags/");
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (String line = SmartHttpRefListing.readPacket(in); line != null; line = SmartHttpRefListing.readPacket(in)) {
+            advertisement.parseV2(line);
+        }
+        RefSnapshot snapshot = advertisement.toSnapshot();
+        assertThat(snapshot.getHeads(), contains("master"));
+        assertThat(snapshot.getCurrentHead(), is("master"));
+        assertThat(snapshot.getTag("v1").isAnnotated(), is(true));
+        assertThat(snapshot.getTag("v1").getObjectHash(), is(feature.name()));
+        assertThat(snapshot.getTag("v1").getCommitHash(), is(initial.name()));
+    }
+}